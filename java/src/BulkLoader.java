@@ -0,0 +1,374 @@
+/*
+ * Bulk Loader
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+
+/**
+ * This class loads the data/*.csv files through the COPY protocol of the
+ * JDBC driver, so it works from any machine that can reach the database
+ * instead of only from the database host.
+ *
+ * Tables are loaded in foreign key order, with independent tables loaded
+ * at the same time: DBUsers first, then Post, UserProfile, UserFollowing
+ * and PostComment together, then UserTagged. The post_ids of the loaded
+ * posts are registered in PostId before UserTagged, which references it,
+ * and a post_id loaded twice fails the load there. Files larger than the
+ * chunk size are split on line boundaries and loaded over several
+ * connections into an unlogged staging table, which is then copied into
+ * the table with one INSERT, so a failed table leaves no rows behind and
+ * the load can simply be re-run.
+ * Secondary indexes are dropped before loading and rebuilt, in parallel,
+ * afterwards, also when a load fails. Rows/sec is reported per table and
+ * overall.
+ *
+ * Usage: java -cp lib/*:bin/ BulkLoader <dbname> <port> <user> <data dir> [--truncate]
+ */
+
+public class BulkLoader{
+	private static final long CHUNK_BYTES = Long.getLong("load.chunkBytes", 64L << 20);
+	private static final int COPY_BUFFER = 1 << 16;
+	//every post_id of Post not registered yet; one left over from a duplicate violates the key
+	private static final String REGISTER_POSTS =
+		"INSERT INTO PostId (post_id) SELECT post_id FROM Post EXCEPT ALL SELECT post_id FROM PostId";
+
+	private final ConnectionPool _pool;
+	private final File _dataDir;
+	//tables wait on their chunks, so they get their own threads to avoid starving the workers
+	private final ExecutorService _tables = Executors.newCachedThreadPool();
+	private final ExecutorService _workers;
+
+	/**
+	 * One table to load: the CSV it comes from, the COPY column list, and the
+	 * stage it belongs to. Every table of a stage only references tables of
+	 * earlier stages.
+	 */
+	static class TableSpec {
+		final String table;
+		final String file;
+		final String columns;
+		final int stage;
+
+		TableSpec(String table, String file, String columns, int stage){
+			this.table = table;
+			this.file = file;
+			this.columns = columns;
+			this.stage = stage;
+		}
+	}
+
+	static final TableSpec[] TABLES = {
+		new TableSpec("DBUsers", "users.csv", "userID, fullname, username, email, user_password", 0),
+		new TableSpec("Post", "posts.csv", "post_id, username_id, likes, date_posted, num_comments, tags, photo_url", 1),
+		new TableSpec("UserProfile", "profiles.csv", "profile_id, username_id, num_posts, followers, followings, follow_status", 1),
+		new TableSpec("UserFollowing", "followings.csv", "username_id, follower", 1),
+		new TableSpec("PostComment", "comments.csv", "username_id, comment", 1),
+		new TableSpec("UserTagged", "taggedusers.csv", "pid, tagged", 2),
+	};
+
+	public BulkLoader(ConnectionPool pool, File dataDir, int threads){
+		this._pool = pool;
+		this._dataDir = dataDir;
+		this._workers = Executors.newFixedThreadPool(threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4){
+			System.err.println("Usage: java [-classpath <classpath>] BulkLoader <dbname> <port> <user> <data dir> [--truncate]");
+			return;
+		}
+		boolean truncate = args.length > 4 && args[4].equals("--truncate");
+		int threads = Integer.getInteger("load.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+		Class.forName("org.postgresql.Driver");
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		ConnectionPool pool = new ConnectionPool(url, args[2], "", 1, threads, 60000L, 600000L);
+		BulkLoader loader = new BulkLoader(pool, new File(args[3]), threads);
+		try{
+			loader.load(truncate);
+		}finally{
+			loader.close();
+			pool.close();
+		}
+	}//end main
+
+	/**
+	 * Loads every table and rebuilds the secondary indexes.
+	 *
+	 * @param truncate empty the tables before loading
+	 * @return the total number of rows loaded
+	 */
+	public long load(boolean truncate) throws SQLException, IOException, InterruptedException {
+		long start = System.nanoTime();
+		if (truncate){
+			StringBuilder tables = new StringBuilder();
+			for (TableSpec t : TABLES) tables.append(tables.length() == 0 ? "" : ", ").append(t.table);
+			//CASCADE from PostId also empties the tables derived from Post, e.g. PostTag
+			execute("TRUNCATE " + tables + ", PostId CASCADE");
+			System.out.println("Truncated " + tables);
+		}
+
+		List<String> indexes = dropSecondaryIndexes();
+		long total = 0;
+		try{
+			int lastStage = TABLES[TABLES.length - 1].stage;
+			for (int stage = 0; stage <= lastStage; ++stage){
+				List<Future<Long>> loads = new ArrayList<Future<Long>>();
+				for (final TableSpec t : TABLES){
+					if (t.stage == stage) loads.add(this._tables.submit(() -> loadTable(t)));
+				}
+				for (Future<Long> f : loads) total += await(f);
+				if (stage == stageOf("Post")) execute(REGISTER_POSTS);
+			}
+		}catch (Exception e){
+			//a failed COPY must not leave the tables without their indexes, nor be hidden by a failed rebuild
+			try{
+				rebuildIndexes(indexes);
+			}catch (Exception rebuild){
+				e.addSuppressed(rebuild);
+			}
+			throw e;
+		}
+		rebuildIndexes(indexes);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Loaded %d rows in %.2f s (%.0f rows/sec)", total, seconds, total / seconds));
+		return total;
+	}//end load
+
+	public void close(){
+		this._tables.shutdownNow();
+		this._workers.shutdownNow();
+	}
+
+	/**
+	 * Loads one table, splitting large files into chunks that are copied
+	 * over separate connections into a staging table. The staged rows reach
+	 * the table in a single INSERT, so it gets all of them or none.
+	 */
+	private long loadTable(TableSpec t) throws Exception {
+		File file = new File(this._dataDir, t.file);
+		long start = System.nanoTime();
+		List<long[]> chunks = split(file);
+		String staging = "bulk_" + t.table.toLowerCase();
+		execute("DROP TABLE IF EXISTS " + staging);
+		execute("CREATE UNLOGGED TABLE " + staging + " AS SELECT " + t.columns + " FROM " + t.table + " WITH NO DATA");
+		final AtomicLong bytes = new AtomicLong();
+		long rows = 0;
+		try{
+			List<Future<Long>> copies = new ArrayList<Future<Long>>();
+			for (int i = 0; i < chunks.size(); ++i){
+				final long[] range = chunks.get(i);
+				final boolean header = i == 0;
+				copies.add(this._workers.submit(() -> copyChunk(t, staging, file, range[0], range[1], header, bytes)));
+			}
+			for (Future<Long> f : copies) rows += await(f);
+			try{
+				execute("INSERT INTO " + t.table + " (" + t.columns + ") SELECT " + t.columns + " FROM " + staging);
+			}catch (PSQLException e){
+				throw new SQLException(describe(t, file, e), e);
+			}
+		}catch (Exception e){
+			try{
+				execute("DROP TABLE IF EXISTS " + staging);
+			}catch (SQLException drop){
+				e.addSuppressed(drop);
+			}
+			throw e;
+		}
+		execute("DROP TABLE " + staging);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("  %-14s %10d rows  %6.1f MB  %2d chunk(s)  %.2f s  (%.0f rows/sec)",
+			t.table, rows, bytes.get() / 1e6, chunks.size(), seconds, rows / seconds));
+		return rows;
+	}//end loadTable
+
+	private long copyChunk(TableSpec t, String target, File file, long offset, long length, boolean header, AtomicLong bytes) throws Exception {
+		String sql = "COPY " + target + " (" + t.columns + ") FROM STDIN WITH (FORMAT csv" + (header ? ", HEADER true" : "") + ")";
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+			FileChannel channel = raf.getChannel();
+			channel.position(offset);
+			InputStream in = new RangeInputStream(Channels.newInputStream(channel), length);
+			CopyManager copy = new CopyManager(pc.getConnection().unwrap(BaseConnection.class));
+			long rows = copy.copyIn(sql, in, COPY_BUFFER);
+			bytes.addAndGet(length);
+			return rows;
+		}catch (PSQLException e){
+			throw new SQLException(describe(t, file, e), e);
+		}finally{
+			this._pool.release(pc);
+		}
+	}//end copyChunk
+
+	/**
+	 * Splits a file into [offset, length] ranges of about CHUNK_BYTES that
+	 * end on a line break. Assumes quoted fields contain no line breaks,
+	 * which holds for the generated data sets.
+	 */
+	static List<long[]> split(File file) throws IOException {
+		List<long[]> chunks = new ArrayList<long[]>();
+		long size = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+			long start = 0;
+			while (start < size){
+				long end = Math.min(size, start + CHUNK_BYTES);
+				if (end < size){
+					raf.seek(end);
+					int b;
+					while ((b = raf.read()) != -1 && b != '\n') end++;
+					end = Math.min(size, end + 1);
+				}
+				chunks.add(new long[]{ start, end - start });
+				start = end;
+			}
+		}
+		if (chunks.isEmpty()) chunks.add(new long[]{ 0, 0 });
+		return chunks;
+	}//end split
+
+	/**
+	 * Drops every index on the loaded tables that does not back a
+	 * constraint, returning their definitions so they can be rebuilt.
+	 */
+	private List<String> dropSecondaryIndexes() throws SQLException {
+		String[] names = new String[TABLES.length];
+		for (int i = 0; i < TABLES.length; ++i) names[i] = TABLES[i].table.toLowerCase();
+		List<String[]> indexes = new ArrayList<String[]>();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			PreparedStatement ps = pc.prepare(
+				"SELECT i.indexname, i.indexdef FROM pg_indexes i WHERE i.schemaname = current_schema() AND i.tablename = ANY(?)" +
+				" AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = (quote_ident(i.schemaname) || '.' || quote_ident(i.indexname))::regclass)");
+			ps.setArray(1, pc.getConnection().createArrayOf("varchar", names));
+			try (ResultSet rs = ps.executeQuery()){
+				while (rs.next()) indexes.add(new String[]{ rs.getString(1), rs.getString(2) });
+			}
+		}finally{
+			this._pool.release(pc);
+		}
+		List<String> definitions = new ArrayList<String>();
+		for (String[] index : indexes){
+			execute("DROP INDEX " + index[0]);
+			definitions.add(index[1]);
+		}
+		if (!indexes.isEmpty()) System.out.println("Dropped " + indexes.size() + " secondary index(es) for the load");
+		return definitions;
+	}//end dropSecondaryIndexes
+
+	private void rebuildIndexes(List<String> definitions) throws SQLException, InterruptedException {
+		if (definitions.isEmpty()) return;
+		long start = System.nanoTime();
+		List<Future<Long>> builds = new ArrayList<Future<Long>>();
+		for (final String definition : definitions){
+			builds.add(this._workers.submit(() -> {
+				execute(definition);
+				return 0L;
+			}));
+		}
+		for (Future<Long> f : builds) await(f);
+		System.out.println(String.format("Rebuilt %d index(es) in %.2f s", definitions.size(), (System.nanoTime() - start) / 1e9));
+	}//end rebuildIndexes
+
+	private static int stageOf(String table){
+		for (TableSpec t : TABLES){
+			if (t.table.equals(table)) return t.stage;
+		}
+		return -1;
+	}
+
+	private void execute(String sql) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Connection c = pc.getConnection();
+			try (Statement stmt = c.createStatement()){
+				stmt.execute(sql);
+			}
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Turns a COPY failure into a message naming the file, the line and the
+	 * offending value, as reported by the server.
+	 */
+	private static String describe(TableSpec t, File file, PSQLException e){
+		StringBuilder msg = new StringBuilder("Loading " + t.table + " from " + file + " failed: ");
+		ServerErrorMessage server = e.getServerErrorMessage();
+		if (server == null) return msg.append(e.getMessage()).toString();
+		msg.append(server.getMessage());
+		if (server.getDetail() != null) msg.append("\n  detail: ").append(server.getDetail());
+		//e.g. "COPY post, line 5, column date_posted: \"13/45/2020\""
+		if (server.getWhere() != null) msg.append("\n  where: ").append(server.getWhere());
+		return msg.toString();
+	}
+
+	private static long await(Future<Long> f) throws SQLException, InterruptedException {
+		try{
+			return f.get();
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			throw new SQLException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Reads at most length bytes from the wrapped stream.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+		private long _remaining;
+
+		RangeInputStream(InputStream in, long length){
+			super(in);
+			this._remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this._remaining <= 0) return -1;
+			int b = super.read();
+			if (b >= 0) this._remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (this._remaining <= 0) return -1;
+			int n = super.read(buf, off, (int) Math.min(len, this._remaining));
+			if (n > 0) this._remaining -= n;
+			return n;
+		}
+	}//end RangeInputStream
+}//end BulkLoader
@@ -0,0 +1,347 @@
+/*
+ * Caching Photo Store
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class keeps the bytes of recently read photos off-heap, in direct
+ * ByteBuffers, in front of another store, so popular photos requested over
+ * and over are served from memory instead of storage.
+ *
+ * The cache holds at most capacityBytes, evicting least recently used
+ * photos first; photos larger than an eighth of it are never cached so one
+ * of them cannot flush everything else. Concurrent misses on the same key
+ * are coalesced: the first reader fetches the photo and the others wait
+ * for its result. Writes and deletes through this store drop the cached
+ * copy of their key and disown any fetch of it in progress, which then
+ * hands its bytes to the readers already waiting but does not cache them.
+ *
+ */
+
+public class CachingPhotoStore implements PhotoStore{
+	private final PhotoStore _backing;
+	private final long _capacityBytes;
+	private final long _maxEntryBytes;
+
+	//least recently used first, guarded by this
+	private final LinkedHashMap<String, ByteBuffer> _entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+	private long _cachedBytes = 0;
+	//told about every key that leaves the cache
+	private volatile Consumer<String> _evictionListener = key -> {};
+	//fetches in progress, keyed by photo; a fetch may only fill the cache while it is still mapped here
+	private final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> _loading = new ConcurrentHashMap<String, CompletableFuture<ByteBuffer>>();
+
+	//statistics
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _coalesced = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+
+	/**
+	 * @param backing the store photos are read from on a miss
+	 * @param capacityBytes maximum number of photo bytes kept in memory
+	 */
+	public CachingPhotoStore(PhotoStore backing, long capacityBytes){
+		this._backing = backing;
+		this._capacityBytes = capacityBytes;
+		this._maxEntryBytes = capacityBytes / 8;
+	}
+
+	@Override
+	public void mkdir(String directory) throws IOException {
+		this._backing.mkdir(directory);
+	}
+
+	@Override
+	public long put(Path source, String key) throws IOException {
+		try{
+			return this._backing.put(source, key);
+		}finally{
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public long get(String key, Path target) throws IOException {
+		ByteBuffer cached = lookup(key);
+		if (cached != null){
+			this._hits.incrementAndGet();
+			return write(cached, target);
+		}
+		CompletableFuture<ByteBuffer> mine = new CompletableFuture<ByteBuffer>();
+		CompletableFuture<ByteBuffer> loading = this._loading.putIfAbsent(key, mine);
+		if (loading != null){
+			this._coalesced.incrementAndGet();
+			ByteBuffer bytes = await(loading);
+			//too large to cache: the leader could not share it
+			if (bytes == null) return this._backing.get(key, target);
+			return write(bytes, target);
+		}
+		try{
+			//another fetch may have finished between the lookup and putIfAbsent
+			cached = lookup(key);
+			if (cached != null){
+				this._hits.incrementAndGet();
+				mine.complete(cached);
+				return write(cached, target);
+			}
+			this._misses.incrementAndGet();
+			long size = this._backing.get(key, target);
+			ByteBuffer bytes = null;
+			if (size <= this._maxEntryBytes){
+				bytes = read(target, size);
+				insert(key, bytes, mine);
+			}
+			mine.complete(bytes);
+			return size;
+		}catch (IOException | RuntimeException e){
+			mine.completeExceptionally(e);
+			throw e;
+		}finally{
+			this._loading.remove(key, mine);
+		}
+	}//end get
+
+	/**
+	 * Method to load a photo into the cache without copying it anywhere,
+	 * sharing the fetch with concurrent readers of the same key.
+	 * 
+	 * @param key the photo to load
+	 * @return true if this call fetched it; false if it was already cached
+	 * or being fetched, missing, or too large to cache
+	 * @throws java.io.IOException when the photo cannot be read
+	 */
+	public boolean warm(String key) throws IOException {
+		if (contains(key)) return false;
+		CompletableFuture<ByteBuffer> mine = new CompletableFuture<ByteBuffer>();
+		if (this._loading.putIfAbsent(key, mine) != null) return false;
+		try{
+			if (contains(key)){
+				mine.complete(lookup(key));
+				return false;
+			}
+			Stat stat = this._backing.stat(key);
+			if (stat == null || stat.size > this._maxEntryBytes){
+				mine.complete(null);
+				return false;
+			}
+			final ByteBuffer bytes = ByteBuffer.allocateDirect((int) stat.size);
+			this._backing.read(key, 0, stat.size, new WritableByteChannel(){
+				@Override
+				public int write(ByteBuffer src){
+					int n = Math.min(src.remaining(), bytes.remaining());
+					ByteBuffer slice = src.duplicate();
+					slice.limit(slice.position() + n);
+					bytes.put(slice);
+					src.position(src.position() + n);
+					return n;
+				}
+
+				@Override
+				public boolean isOpen(){
+					return true;
+				}
+
+				@Override
+				public void close(){
+					// nothing to release.
+				}
+			});
+			bytes.flip();
+			insert(key, bytes, mine);
+			mine.complete(bytes);
+			return true;
+		}catch (IOException | RuntimeException e){
+			mine.completeExceptionally(e);
+			throw e;
+		}finally{
+			this._loading.remove(key, mine);
+		}
+	}//end warm
+
+	/**
+	 * @param listener called with the key of every photo evicted or
+	 *        invalidated, while the cache is locked; it must not call back
+	 *        into the cache
+	 */
+	public void setEvictionListener(Consumer<String> listener){
+		this._evictionListener = listener;
+	}
+
+	/**
+	 * @param key the photo to look up
+	 * @return whether the photo is cached, without counting as a use
+	 */
+	public synchronized boolean contains(String key){
+		return this._entries.containsKey(key);
+	}
+
+	/**
+	 * Serves the range from memory when the photo is cached. Ranges never
+	 * fill the cache, since a ranged reader rarely wants the whole photo.
+	 */
+	@Override
+	public long read(String key, long offset, long length, WritableByteChannel out) throws IOException {
+		ByteBuffer cached = lookup(key);
+		if (cached == null)
+			return this._backing.read(key, offset, length, out);
+		this._hits.incrementAndGet();
+		int from = (int) Math.min(offset, cached.limit());
+		cached.position(from);
+		cached.limit((int) Math.min(cached.limit(), from + length));
+		long copied = cached.remaining();
+		while (cached.hasRemaining())
+			out.write(cached);
+		return copied;
+	}
+
+	@Override
+	public Stat stat(String key) throws IOException {
+		return this._backing.stat(key);
+	}
+
+	@Override
+	public Map<String, Stat> statAll(Collection<String> keys) throws IOException {
+		return this._backing.statAll(keys);
+	}
+
+	@Override
+	public boolean delete(String key) throws IOException {
+		try{
+			return this._backing.delete(key);
+		}finally{
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public long compact() throws IOException {
+		return this._backing.compact();
+	}
+
+	private synchronized ByteBuffer lookup(String key){
+		ByteBuffer bytes = this._entries.get(key);
+		return bytes == null ? null : bytes.duplicate();
+	}
+
+	/**
+	 * Caches the bytes a fetch read, unless a write or delete of the key
+	 * has disowned the fetch since it started.
+	 */
+	private synchronized void insert(String key, ByteBuffer bytes, CompletableFuture<ByteBuffer> fetch){
+		if (this._loading.get(key) != fetch) return;
+		ByteBuffer previous = this._entries.put(key, bytes);
+		if (previous != null)
+			this._cachedBytes -= previous.capacity();
+		this._cachedBytes += bytes.capacity();
+		Iterator<Map.Entry<String, ByteBuffer>> eldest = this._entries.entrySet().iterator();
+		while (this._cachedBytes > this._capacityBytes && eldest.hasNext()){
+			Map.Entry<String, ByteBuffer> evicted = eldest.next();
+			eldest.remove();
+			this._cachedBytes -= evicted.getValue().capacity();
+			this._evictions.incrementAndGet();
+			this._evictionListener.accept(evicted.getKey());
+		}
+	}//end insert
+
+	private synchronized void invalidate(String key){
+		//a fetch that started before the write may have read the old bytes
+		this._loading.remove(key);
+		ByteBuffer removed = this._entries.remove(key);
+		if (removed != null){
+			this._cachedBytes -= removed.capacity();
+			this._evictionListener.accept(key);
+		}
+	}
+
+	/**
+	 * Copies a freshly downloaded photo into a new direct buffer.
+	 */
+	private static ByteBuffer read(Path file, long size) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocateDirect((int) size);
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+			while (bytes.hasRemaining() && in.read(bytes) >= 0){
+				// keep reading.
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	private static long write(ByteBuffer bytes, Path target) throws IOException {
+		ByteBuffer view = bytes.duplicate();
+		Path parent = target.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while (view.hasRemaining())
+				out.write(view);
+		}
+		return bytes.remaining();
+	}
+
+	private static ByteBuffer await(CompletableFuture<ByteBuffer> loading) throws IOException {
+		try{
+			ByteBuffer bytes = loading.get();
+			return bytes == null ? null : bytes.duplicate();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a photo", e);
+		}catch (ExecutionException e){
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this){
+			this._entries.clear();
+			this._cachedBytes = 0;
+		}
+		this._backing.close();
+	}
+
+	@Override
+	public String getStatistics(){
+		//a coalesced read costs no fetch of its own, so it counts as a hit
+		long hits = this._hits.get() + this._coalesced.get();
+		long lookups = hits + this._misses.get();
+		long cached;
+		int entries;
+		synchronized (this){
+			cached = this._cachedBytes;
+			entries = this._entries.size();
+		}
+		return String.format("Photo cache: %d photos %.1f/%.1f MB hits=%d misses=%d coalesced=%d evictions=%d hitRatio=%.1f%%%n%s",
+			entries, cached / 1048576.0, this._capacityBytes / 1048576.0, this._hits.get(), this._misses.get(),
+			this._coalesced.get(), this._evictions.get(), lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+			this._backing.getStatistics());
+	}
+}//end CachingPhotoStore
@@ -0,0 +1,244 @@
+/*
+ * Columnar Result
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class holds a query result column by column. Integer columns are
+ * stored in int[], bigint columns in long[], and every other column is
+ * dictionary encoded: an int[] of codes into an array of distinct strings.
+ * A result of n rows therefore costs a handful of arrays instead of n
+ * ArrayLists of boxed strings, and repeated values such as usernames or
+ * tags are stored once.
+ *
+ */
+
+public class ColumnarResult{
+	public static final int INT = 0;
+	public static final int LONG = 1;
+	public static final int STRING = 2;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final String[] _names;
+	private final int[] _kinds;
+	private final int[][] _ints;
+	private final long[][] _longs;
+	private final String[][] _dictionaries;
+	private final BitSet[] _nulls;
+	private final int _rowCount;
+
+	private ColumnarResult(String[] names, int[] kinds, int[][] ints, long[][] longs,
+			String[][] dictionaries, BitSet[] nulls, int rowCount){
+		this._names = names;
+		this._kinds = kinds;
+		this._ints = ints;
+		this._longs = longs;
+		this._dictionaries = dictionaries;
+		this._nulls = nulls;
+		this._rowCount = rowCount;
+	}
+
+	/**
+	 * Reads every remaining row of rs into columnar form.
+	 *
+	 * @param rs the result set to drain
+	 * @return the columnar copy of the result
+	 * @throws java.sql.SQLException when the result cannot be read
+	 */
+	public static ColumnarResult from(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		String[] names = new String[numCol];
+		int[] kinds = new int[numCol];
+		int[][] ints = new int[numCol][];
+		long[][] longs = new long[numCol][];
+		BitSet[] nulls = new BitSet[numCol];
+		List<HashMap<String, Integer>> codes = new ArrayList<HashMap<String, Integer>>(numCol);
+		List<List<String>> values = new ArrayList<List<String>>(numCol);
+
+		for (int c = 0; c < numCol; ++c){
+			names[c] = rsmd.getColumnName(c + 1);
+			kinds[c] = kindOf(rsmd.getColumnType(c + 1));
+			nulls[c] = new BitSet();
+			if (kinds[c] == LONG){
+				longs[c] = new long[INITIAL_CAPACITY];
+			}else{
+				//string columns keep their dictionary codes in ints[c]
+				ints[c] = new int[INITIAL_CAPACITY];
+			}
+			codes.add(kinds[c] == STRING ? new HashMap<String, Integer>() : null);
+			values.add(kinds[c] == STRING ? new ArrayList<String>() : null);
+		}
+
+		int row = 0;
+		while (rs.next()){
+			if (numCol > 0 && row == capacity(ints, longs, 0)){
+				grow(ints, longs);
+			}
+			for (int c = 0; c < numCol; ++c){
+				switch (kinds[c]){
+					case INT:
+						ints[c][row] = rs.getInt(c + 1);
+						if (rs.wasNull()) nulls[c].set(row);
+						break;
+					case LONG:
+						longs[c][row] = rs.getLong(c + 1);
+						if (rs.wasNull()) nulls[c].set(row);
+						break;
+					default:
+						String v = rs.getString(c + 1);
+						if (v == null){
+							ints[c][row] = -1;
+							nulls[c].set(row);
+						}else{
+							Integer code = codes.get(c).get(v);
+							if (code == null){
+								code = values.get(c).size();
+								codes.get(c).put(v, code);
+								values.get(c).add(v);
+							}
+							ints[c][row] = code;
+						}
+						break;
+				}
+			}
+			++row;
+		}//end while
+
+		String[][] dictionaries = new String[numCol][];
+		for (int c = 0; c < numCol; ++c){
+			if (kinds[c] == STRING){
+				dictionaries[c] = values.get(c).toArray(new String[0]);
+			}
+		}
+		return new ColumnarResult(names, kinds, ints, longs, dictionaries, nulls, row);
+	}//end from
+
+	public int getRowCount(){
+		return this._rowCount;
+	}
+
+	public int getColumnCount(){
+		return this._names.length;
+	}
+
+	public String getColumnName(int col){
+		return this._names[col];
+	}
+
+	/**
+	 * @param col zero based column index
+	 * @return one of INT, LONG or STRING
+	 */
+	public int getColumnKind(int col){
+		return this._kinds[col];
+	}
+
+	public boolean isNull(int col, int row){
+		return this._nulls[col].get(row);
+	}
+
+	public int getInt(int col, int row){
+		checkKind(col, INT);
+		return this._ints[col][row];
+	}
+
+	public long getLong(int col, int row){
+		if (this._kinds[col] == INT) return this._ints[col][row];
+		checkKind(col, LONG);
+		return this._longs[col][row];
+	}
+
+	public String getString(int col, int row){
+		if (isNull(col, row)) return null;
+		switch (this._kinds[col]){
+			case INT: return Integer.toString(this._ints[col][row]);
+			case LONG: return Long.toString(this._longs[col][row]);
+			default: return this._dictionaries[col][this._ints[col][row]];
+		}
+	}
+
+	/**
+	 * Returns the backing array of an INT column. Only the first
+	 * getRowCount() entries are meaningful; the array must not be modified.
+	 */
+	public int[] getIntColumn(int col){
+		checkKind(col, INT);
+		return this._ints[col];
+	}
+
+	/**
+	 * Returns the backing array of a LONG column. Only the first
+	 * getRowCount() entries are meaningful; the array must not be modified.
+	 */
+	public long[] getLongColumn(int col){
+		checkKind(col, LONG);
+		return this._longs[col];
+	}
+
+	/**
+	 * Returns the dictionary codes of a STRING column, -1 for null. Only the
+	 * first getRowCount() entries are meaningful.
+	 */
+	public int[] getCodes(int col){
+		checkKind(col, STRING);
+		return this._ints[col];
+	}
+
+	/**
+	 * Returns the distinct values of a STRING column indexed by code.
+	 */
+	public String[] getDictionary(int col){
+		checkKind(col, STRING);
+		return this._dictionaries[col];
+	}
+
+	private void checkKind(int col, int kind){
+		if (this._kinds[col] != kind){
+			throw new IllegalArgumentException("Column " + this._names[col] + " is not of the requested type");
+		}
+	}
+
+	private static int kindOf(int sqlType){
+		switch (sqlType){
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+				return INT;
+			case Types.BIGINT:
+				return LONG;
+			default:
+				return STRING;
+		}
+	}
+
+	private static int capacity(int[][] ints, long[][] longs, int col){
+		return ints[col] != null ? ints[col].length : longs[col].length;
+	}
+
+	private static void grow(int[][] ints, long[][] longs){
+		for (int c = 0; c < ints.length; ++c){
+			if (ints[c] != null) ints[c] = Arrays.copyOf(ints[c], ints[c].length * 2);
+			if (longs[c] != null) longs[c] = Arrays.copyOf(longs[c], longs[c].length * 2);
+		}
+	}
+}//end ColumnarResult
@@ -0,0 +1,176 @@
+/*
+ * Comment Search
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class answers word and phrase searches over PostComment through a
+ * GIN index on to_tsvector(comment), so finding comments that contain a
+ * word reads the posting lists of that word instead of scanning every
+ * comment with LIKE '%x%'.
+ *
+ * Postgres keeps the index current on every insert, including COPY and
+ * CommentPost. ensureIndex() creates it on databases made before it was
+ * part of create.sql.
+ *
+ * A query is a list of terms that must all match: plain words, "quoted
+ * phrases" whose words must be adjacent, -word to exclude a word and
+ * word* for a prefix. Matches are ranked by ts_rank_cd, but only the
+ * first CANDIDATES matches the index yields are ranked, so a search for
+ * a very common word costs the same however many comments there are.
+ *
+ */
+
+public class CommentSearch{
+	//must stay identical to the expression of comment_fts_idx for the index to be used
+	private static final String DOCUMENT = "to_tsvector('english', comment)";
+	private static final String QUERY = "to_tsquery('english', ?)";
+	private static final String INDEX =
+		"CREATE INDEX IF NOT EXISTS comment_fts_idx ON PostComment USING GIN (" + DOCUMENT + ")";
+	private static final String SEARCH =
+		"SELECT username_id, comment, ts_rank_cd(" + DOCUMENT + ", " + QUERY + ") AS rank, COUNT(*) OVER ()" +
+		" FROM (SELECT username_id, comment FROM PostComment WHERE " + DOCUMENT + " @@ " + QUERY + " LIMIT ?) c" +
+		" ORDER BY rank DESC, username_id, comment LIMIT ?";
+	private static final Pattern TERM = Pattern.compile("(-?)\"([^\"]*)\"?|(-?)([^\\s\"]+)");
+	private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+
+	public static final int CANDIDATES = Integer.getInteger("comments.candidates", 1000);
+
+	private final DBproject _db;
+
+	//statistics
+	private final AtomicLong _searches = new AtomicLong();
+	private final AtomicLong _capped = new AtomicLong();
+	private final AtomicLong _searchNanos = new AtomicLong();
+
+	/**
+	 * One matching comment.
+	 */
+	public static class Match {
+		public final String username;
+		public final String comment;
+		public final double rank;
+
+		Match(String username, String comment, double rank){
+			this.username = username;
+			this.comment = comment;
+			this.rank = rank;
+		}
+
+		@Override
+		public String toString(){
+			return this.username + "\t" + this.comment;
+		}
+	}//end Match
+
+	/**
+	 * The best matches of one search.
+	 */
+	public static class Result {
+		public final List<Match> matches;
+		//true when more comments matched than were ranked
+		public final boolean capped;
+
+		Result(List<Match> matches, boolean capped){
+			this.matches = matches;
+			this.capped = capped;
+		}
+	}//end Result
+
+	/**
+	 * @param db the database the comments are read from
+	 */
+	public CommentSearch(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Creates the full-text index if the schema predates it. Building it
+	 * reads PostComment once; afterwards this is a no-op.
+	 * 
+	 * @throws java.sql.SQLException when the index cannot be created
+	 */
+	public void ensureIndex() throws SQLException {
+		this._db.executePreparedUpdate(INDEX);
+	}
+
+	/**
+	 * Method to translate a search into tsquery syntax. Only letters and
+	 * digits are passed through, so no input can break the tsquery.
+	 * 
+	 * @param query e.g. great "new york" -pizza sun*
+	 * @return e.g. great &amp; (new &lt;-&gt; york) &amp; !pizza &amp; sun:*
+	 * @throws IllegalArgumentException when the query has no word to look up
+	 */
+	public static String toTsQuery(String query){
+		List<String> terms = new ArrayList<String>();
+		boolean positive = false;
+		Matcher term = TERM.matcher(query == null ? "" : query);
+		while (term.find()){
+			boolean phrase = term.group(2) != null;
+			boolean negated = !(phrase ? term.group(1) : term.group(3)).isEmpty();
+			String text = phrase ? term.group(2) : term.group(4);
+			boolean prefix = !phrase && text.endsWith("*");
+
+			List<String> words = new ArrayList<String>();
+			Matcher word = WORD.matcher(text.toLowerCase());
+			while (word.find())
+				words.add(word.group());
+			if (words.isEmpty()) continue;
+			if (prefix) words.set(words.size() - 1, words.get(words.size() - 1) + ":*");
+
+			//a word written with punctuation, e.g. don't, is a phrase to to_tsquery
+			String joined = String.join(" <-> ", words);
+			if (words.size() > 1) joined = "(" + joined + ")";
+			terms.add(negated ? "!" + joined : joined);
+			positive |= !negated;
+		}
+		if (!positive)
+			throw new IllegalArgumentException("Search for at least one word that must appear");
+		return String.join(" & ", terms);
+	}//end toTsQuery
+
+	/**
+	 * @param query words, "phrases", -excluded words and prefix* words, all required
+	 * @param limit maximum number of matches returned
+	 * @return the best ranked of the first CANDIDATES matching comments
+	 * @throws java.sql.SQLException when PostComment cannot be read
+	 */
+	public Result search(String query, int limit) throws SQLException {
+		String tsQuery = toTsQuery(query);
+		long start = System.nanoTime();
+		final long[] matched = {0};
+		List<Match> matches = this._db.executeQueryAndMap(SEARCH, rs -> {
+			matched[0] = rs.getLong(4);
+			return new Match(rs.getString(1), rs.getString(2), rs.getDouble(3));
+		}, tsQuery, tsQuery, CANDIDATES, limit);
+		boolean capped = matched[0] >= CANDIDATES;
+
+		this._searches.incrementAndGet();
+		if (capped) this._capped.incrementAndGet();
+		this._searchNanos.addAndGet(System.nanoTime() - start);
+		return new Result(matches, capped);
+	}//end search
+
+	public String getStatistics(){
+		long searches = this._searches.get();
+		return String.format("Comment search: searches=%d capped=%d avgSearch=%.1fms candidates=%d",
+			searches, this._capped.get(),
+			searches == 0 ? 0.0 : this._searchNanos.get() / 1e6 / searches, CANDIDATES);
+	}
+}//end CommentSearch
@@ -0,0 +1,414 @@
+/*
+ * Connection Pool
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded set of physical PostgreSQL connections that
+ * callers borrow for the duration of one statement and hand back afterwards.
+ * Connections are validated on borrow, idle connections above the minimum
+ * size are evicted in the background, and acquire latency and wait-queue
+ * depth are recorded so they can be printed from the menu. Every pooled
+ * connection carries its own StatementCache of prepared statements.
+ *
+ */
+
+public class ConnectionPool{
+	// connections that have been idle for less than this are handed out without a round trip
+	private static final long VALIDATION_BYPASS_MILLIS = 500;
+	private static final int VALIDATION_TIMEOUT_SECS = 2;
+	private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("pool.statementCacheSize", 64);
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _idleTimeoutMillis;
+	private final long _borrowTimeoutMillis;
+
+	//most recently returned connection sits at the head so hot connections stay hot
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	private final ScheduledExecutorService _evictor;
+
+	//guarded by _lock
+	private int _total = 0;
+	private int _waiting = 0;
+	private int _peakWaiting = 0;
+	private boolean _closed = false;
+
+	//statistics
+	private final AtomicLong _acquireCount = new AtomicLong();
+	private final AtomicLong _acquireNanos = new AtomicLong();
+	private final AtomicLong _maxAcquireNanos = new AtomicLong();
+	private final AtomicLong _timeouts = new AtomicLong();
+	private final AtomicLong _created = new AtomicLong();
+	private final AtomicLong _destroyed = new AtomicLong();
+	private final AtomicLong _validationFailures = new AtomicLong();
+	private final AtomicLong _statementHits = new AtomicLong();
+	private final AtomicLong _statementMisses = new AtomicLong();
+	private final AtomicLong _statementEvictions = new AtomicLong();
+
+	/**
+	 * A physical connection owned by the pool together with the bookkeeping
+	 * the pool needs about it.
+	 */
+	public static class PooledConnection {
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private long _lastUsed;
+
+		PooledConnection(Connection connection, StatementCache statements){
+			this._connection = connection;
+			this._statements = statements;
+			this._lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection getConnection(){
+			return this._connection;
+		}
+
+		/**
+		 * Returns a cached prepared statement for this connection.
+		 *
+		 * @param sql the SQL text with ? placeholders
+		 * @return a statement with cleared parameters; do not close it
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			return this._statements.prepare(sql);
+		}
+
+		void close(){
+			this._statements.close();
+			try{
+				this._connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+	}//end PooledConnection
+
+	/**
+	 * Creates the pool and eagerly opens minSize connections.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the database password
+	 * @param minSize number of connections kept open even when idle
+	 * @param maxSize upper bound on open connections
+	 * @param idleTimeoutMillis idle time after which a connection above minSize is closed
+	 * @param borrowTimeoutMillis how long borrow() waits for a free connection
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long idleTimeoutMillis, long borrowTimeoutMillis) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize){
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+		}
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._borrowTimeoutMillis = borrowTimeoutMillis;
+
+		fill();
+
+		this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		this._evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new one if the pool is
+	 * below its maximum size or waiting for one to be released otherwise.
+	 * The caller must hand it back with release().
+	 *
+	 * @return a validated connection
+	 * @throws java.sql.SQLException when no connection became available in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._borrowTimeoutMillis);
+		while (true){
+			PooledConnection pc = acquireSlot(deadline);
+			if (pc == null){
+				//we reserved a slot for a brand new connection
+				try{
+					pc = open();
+				}catch (SQLException e){
+					releaseSlot();
+					throw e;
+				}
+			}else if (!validate(pc)){
+				this._validationFailures.incrementAndGet();
+				discard(pc);
+				continue;
+			}
+			recordAcquire(System.nanoTime() - start);
+			return pc;
+		}
+	}//end borrow
+
+	/**
+	 * Hands a borrowed connection back to the pool. Broken connections are
+	 * closed instead of being reused, and any open transaction is rolled back.
+	 *
+	 * @param pc the connection obtained from borrow()
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null) return;
+		try{
+			Connection c = pc.getConnection();
+			if (c.isClosed()){
+				discard(pc);
+				return;
+			}
+			if (!c.getAutoCommit()){
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+		}catch (SQLException e){
+			discard(pc);
+			return;
+		}
+		pc._lastUsed = System.currentTimeMillis();
+		boolean closeIt = false;
+		this._lock.lock();
+		try{
+			if (this._closed){
+				this._total--;
+				closeIt = true;
+			}else{
+				this._idle.addFirst(pc);
+				this._available.signal();
+			}
+		}finally{
+			this._lock.unlock();
+		}
+		if (closeIt){
+			pc.close();
+			this._destroyed.incrementAndGet();
+		}
+	}//end release
+
+	/**
+	 * Closes every idle connection and stops the evictor. Connections that are
+	 * still borrowed are closed when they are released.
+	 */
+	public void close(){
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		this._lock.lock();
+		try{
+			this._closed = true;
+			toClose.addAll(this._idle);
+			this._total -= this._idle.size();
+			this._idle.clear();
+			this._available.signalAll();
+		}finally{
+			this._lock.unlock();
+		}
+		this._evictor.shutdownNow();
+		for (PooledConnection pc : toClose){
+			pc.close();
+			this._destroyed.incrementAndGet();
+		}
+	}//end close
+
+	/**
+	 * Returns a human readable summary of pool size, acquire latency and
+	 * wait-queue depth.
+	 *
+	 * @return the statistics as printable text
+	 */
+	public String getStatistics(){
+		int total, idle, waiting, peakWaiting;
+		this._lock.lock();
+		try{
+			total = this._total;
+			idle = this._idle.size();
+			waiting = this._waiting;
+			peakWaiting = this._peakWaiting;
+		}finally{
+			this._lock.unlock();
+		}
+		long count = this._acquireCount.get();
+		double avgMicros = count == 0 ? 0 : this._acquireNanos.get() / 1000.0 / count;
+		long hits = this._statementHits.get();
+		long lookups = hits + this._statementMisses.get();
+		return String.format(
+			"Connection pool: size=%d (min=%d, max=%d) idle=%d active=%d%n" +
+			"  acquires=%d avg=%.1fus max=%.1fus timeouts=%d%n" +
+			"  waiting=%d peakWaiting=%d created=%d destroyed=%d validationFailures=%d%n" +
+			"Statement cache: hits=%d misses=%d evictions=%d hitRatio=%.1f%%",
+			total, this._minSize, this._maxSize, idle, total - idle,
+			count, avgMicros, this._maxAcquireNanos.get() / 1000.0, this._timeouts.get(),
+			waiting, peakWaiting, this._created.get(), this._destroyed.get(), this._validationFailures.get(),
+			hits, lookups - hits, this._statementEvictions.get(), lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+	}//end getStatistics
+
+	/**
+	 * Takes an idle connection, or reserves room for a new one (returns null),
+	 * or waits until one of the two is possible.
+	 */
+	private PooledConnection acquireSlot(long deadline) throws SQLException {
+		this._lock.lock();
+		try{
+			while (true){
+				if (this._closed){
+					throw new SQLException("Connection pool is closed");
+				}
+				PooledConnection pc = this._idle.pollFirst();
+				if (pc != null) return pc;
+				if (this._total < this._maxSize){
+					this._total++;
+					return null;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0){
+					this._timeouts.incrementAndGet();
+					throw new SQLException("Timed out after " + this._borrowTimeoutMillis + "ms waiting for a database connection");
+				}
+				this._waiting++;
+				if (this._waiting > this._peakWaiting) this._peakWaiting = this._waiting;
+				try{
+					this._available.awaitNanos(remaining);
+				}catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a database connection");
+				}finally{
+					this._waiting--;
+				}
+			}
+		}finally{
+			this._lock.unlock();
+		}
+	}//end acquireSlot
+
+	private void releaseSlot(){
+		this._lock.lock();
+		try{
+			this._total--;
+			this._available.signal();
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+		this._created.incrementAndGet();
+		return new PooledConnection(c, new StatementCache(c, STATEMENT_CACHE_SIZE,
+			this._statementHits, this._statementMisses, this._statementEvictions));
+	}
+
+	private boolean validate(PooledConnection pc){
+		if (System.currentTimeMillis() - pc._lastUsed < VALIDATION_BYPASS_MILLIS) return true;
+		try{
+			return pc.getConnection().isValid(VALIDATION_TIMEOUT_SECS);
+		}catch (SQLException e){
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc){
+		pc.close();
+		this._destroyed.incrementAndGet();
+		releaseSlot();
+	}
+
+	private void recordAcquire(long nanos){
+		this._acquireCount.incrementAndGet();
+		this._acquireNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = this._maxAcquireNanos.get())){
+			if (this._maxAcquireNanos.compareAndSet(max, nanos)) break;
+		}
+	}
+
+	/**
+	 * Opens connections until the pool holds at least minSize of them.
+	 */
+	private void fill() throws SQLException {
+		while (true){
+			this._lock.lock();
+			try{
+				if (this._closed || this._total >= this._minSize) return;
+				this._total++;
+			}finally{
+				this._lock.unlock();
+			}
+			PooledConnection pc;
+			try{
+				pc = open();
+			}catch (SQLException e){
+				releaseSlot();
+				throw e;
+			}
+			release(pc);
+		}
+	}//end fill
+
+	/**
+	 * Closes connections that have been idle longer than the idle timeout,
+	 * never shrinking the pool below minSize, then tops the pool back up.
+	 */
+	private void evictIdle(){
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		long cutoff = System.currentTimeMillis() - this._idleTimeoutMillis;
+		this._lock.lock();
+		try{
+			//oldest connections live at the tail
+			Iterator<PooledConnection> it = this._idle.descendingIterator();
+			while (it.hasNext() && this._total > this._minSize){
+				PooledConnection pc = it.next();
+				if (pc._lastUsed >= cutoff) break;
+				it.remove();
+				this._total--;
+				toClose.add(pc);
+			}
+		}finally{
+			this._lock.unlock();
+		}
+		for (PooledConnection pc : toClose){
+			pc.close();
+			this._destroyed.incrementAndGet();
+		}
+		try{
+			fill();
+		}catch (SQLException e){
+			// database unreachable right now; borrow() will report it.
+		}
+	}//end evictIdle
+}//end ConnectionPool
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,9 +22,20 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.Random;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
 import java.math.BigInteger;  
 import java.nio.charset.StandardCharsets; 
 import java.security.MessageDigest;  
@@ -36,19 +48,93 @@ import java.security.NoSuchAlgorithmException;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by all helpers
+	private ConnectionPool _pool = null;
+	//rows fetched per round trip by streaming queries
+	private int _fetchSize = Integer.getInteger("query.fetchSize", 1000);
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+	//in-memory structures derived from the base tables
+	private final TimelineStore _timelines = new TimelineStore(this,
+		Integer.getInteger("timeline.capacity", 200),
+		Integer.getInteger("timeline.celebrityThreshold", 1000));
+	private final FeedEngine _feeds = new FeedEngine(this);
+	private final FollowerLeaderboard _leaderboard = new FollowerLeaderboard(this);
+	private final TagIndex _tags = new TagIndex(this);
+	private final UserSearchIndex _userSearch = new UserSearchIndex(this);
+	private final CommentSearch _comments = new CommentSearch(this);
+	private final PostPartitions _partitions = new PostPartitions(this);
+	private final LikeCounter _likes = new LikeCounter(this,
+		Integer.getInteger("likes.topCapacity", 100),
+		Long.getLong("likes.flushMillis", 1000L));
+	private final ProfileCounters _profiles = new ProfileCounters(this,
+		Long.getLong("profiles.flushMillis", 1000L),
+		Long.getLong("profiles.reconcileMillis", 600000L));
+	//primary keys reserved from the sequences in blocks
+	private static final int ID_BLOCK_SIZE = Integer.getInteger("ids.blockSize", 100);
+	private final IdAllocator _userIds = new IdAllocator(this, "userID", ID_BLOCK_SIZE);
+	private final IdAllocator _postIds = new IdAllocator(this, "post_id", ID_BLOCK_SIZE);
+	private final IdAllocator _profileIds = new IdAllocator(this, "profile_id", ID_BLOCK_SIZE);
+	//photo files, kept in-process instead of shelling out to the hadoop CLI
+	private PhotoStore _photoStore = null;
+	//the same photos without the cache in front, for bulk reads of photos nobody asked for
+	private PhotoStore _uncachedPhotoStore = null;
+	private final ThumbnailPipeline _thumbnails = new ThumbnailPipeline(this,
+		Integer.getInteger("thumbnails.size", 256),
+		Integer.getInteger("thumbnails.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+		Integer.getInteger("thumbnails.queue", 1000));
+	//warms the cache with the photos of each listed page; null without a cache
+	private PhotoPrefetcher _prefetcher = null;
+	//photos larger than this are downloaded in resumable chunks of this size
+	static final int TRANSFER_CHUNK_BYTES = Integer.getInteger("transfer.chunkBytes", 1 << 20);
+	//where DownloadPhoto saves photos; changed from the download prompt
+	static Path downloadDir = Paths.get(System.getProperty("photos.downloadDir", "downloadedPhotos"));
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//number of rows shown per page by the paged listings
+	static final int PAGE_SIZE = Integer.getInteger("listing.pageSize", 20);
+	static final String POST_HEADER = FeedItem.COLUMNS.replace(", ", "\t") + "\t";
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			// server-side prepare cached statements from their first execution
+			// and send JDBC batches of single-row INSERTs as multi-row INSERTs
+			String pooledUrl = url + "?prepareThreshold=1&reWriteBatchedInserts=true";
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// opens the connection pool; sizes can be overridden with -Dpool.minSize etc.
+			int cores = Runtime.getRuntime().availableProcessors();
+			this._pool = new ConnectionPool(pooledUrl, user, passwd,
+				Integer.getInteger("pool.minSize", 2),
+				Integer.getInteger("pool.maxSize", Math.max(4, cores * 2)),
+				Long.getLong("pool.idleTimeoutMillis", 60000L),
+				Long.getLong("pool.borrowTimeoutMillis", 30000L));
+	        // one file per photo, or -Dphotos.backend=segments to pack photos into large segment files
+	        Path photoRoot = Paths.get(System.getProperty("photos.root", "photos"));
+	        PhotoStore files = System.getProperty("photos.backend", "files").equals("segments")
+	        	? new SegmentPhotoStore(photoRoot,
+	        		Long.getLong("photos.segmentBytes", 256L << 20),
+	        		Double.parseDouble(System.getProperty("photos.compactRatio", "0.5")))
+	        	: new LocalPhotoStore(photoRoot);
+	        // store each distinct photo once unless -Dphotos.dedup=false
+	        PhotoStore stored = Boolean.parseBoolean(System.getProperty("photos.dedup", "true"))
+	        	? new DedupPhotoStore(this, files) : files;
+	        this._uncachedPhotoStore = stored;
+	        // keep popular photos in memory unless -Dphotos.cacheBytes=0
+	        long cacheBytes = Long.getLong("photos.cacheBytes", 64L << 20);
+	        if (cacheBytes > 0) {
+	        	CachingPhotoStore cache = new CachingPhotoStore(stored, cacheBytes);
+	        	this._photoStore = cache;
+	        	this._prefetcher = new PhotoPrefetcher(cache,
+	        		Integer.getInteger("prefetch.count", 10),
+	        		Integer.getInteger("prefetch.threads", 2),
+	        		Long.getLong("prefetch.bytesPerSecond", 0L));
+	        } else {
+	        	this._photoStore = stored;
+	        }
+	        this._likes.start();
+	        this._profiles.start();
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -65,16 +151,86 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			// creates a statement object
+			Statement stmt = pc.getConnection ().createStatement ();
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+			// issues the update instruction
+			stmt.executeUpdate (sql);
 
-		// close the instruction
-	    stmt.close ();
+			// close the instruction
+		    stmt.close ();
+		}finally{
+			this._pool.release (pc);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to execute a parameterized update SQL statement through the
+	 * prepared statement cache of the borrowed connection.
+	 * 
+	 * @param sql the input SQL string with ? placeholders
+	 * @param params values bound to the placeholders in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executePreparedUpdate (String sql, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			PreparedStatement ps = prepare (pc, sql, params);
+			return ps.executeUpdate ();
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executePreparedUpdate
+
+	/**
+	 * Method to start an explicit transaction on a pooled connection.  The
+	 * caller must close it; closing without commit rolls back.
+	 * 
+	 * @return the open transaction
+	 * @throws java.sql.SQLException when no connection is available
+	 */
+	public Transaction beginTransaction () throws SQLException {
+		return new Transaction (this._pool);
+	}
+
+	/**
+	 * Method to run work atomically: it is committed if it returns normally
+	 * and rolled back if it throws.
+	 * 
+	 * @param work the statements to run
+	 * @return the value returned by work
+	 * @throws java.sql.SQLException when any statement or the commit failed
+	 */
+	public <T> T inTransaction (Transaction.Work<T> work) throws SQLException {
+		try (Transaction tx = beginTransaction ()){
+			T result = work.run (tx);
+			tx.commit ();
+			return result;
+		}
+	}//end inTransaction
+
+	/**
+	 * Method to write many rows with one parameterized statement in a single
+	 * transaction, using JDBC batching.
+	 * 
+	 * @param sql the input SQL string with ? placeholders
+	 * @param rows one parameter array per row
+	 * @return the number of rows sent
+	 * @throws java.sql.SQLException when any row failed; nothing is written then
+	 */
+	public long executeBatch (String sql, List<Object[]> rows) throws SQLException {
+		return inTransaction (tx -> {
+			for (Object[] row : rows)
+				tx.addBatch (sql, row);
+			// rows auto-flushed at batch.size are not counted by executeBatch()
+			tx.executeBatch ();
+			return tx.getBatchedRows ();
+		});
+	}//end executeBatch
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -85,12 +241,123 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			//creates a statement object
+			Statement stmt = pc.getConnection ().createStatement ();
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+			int rowCount = printResult (rs);
+			stmt.close ();
+			return rowCount;
+		}finally{
+			this._pool.release (pc);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute a parameterized query through the prepared statement
+	 * cache and output the results to standard out.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params values bound to the placeholders in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executePreparedQueryAndPrintResult (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			try{
+				return printResult (rs);
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			this._pool.release (pc);
+		}
+	}
 
+	/**
+	 * Method to execute a parameterized query and stream the results to
+	 * standard out.  The query runs inside a transaction so the driver reads
+	 * it through a server-side cursor, fetchSize rows at a time, and rows
+	 * are written through a buffered writer.  Memory use therefore does not
+	 * grow with the size of the result.  A rows/sec summary is printed at
+	 * the end.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params values bound to the placeholders in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndStreamResult (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		int rowCount;
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			Connection conn = pc.getConnection ();
+			//cursors are only used by the driver outside of autocommit mode
+			conn.setAutoCommit (false);
+			PreparedStatement ps = prepare (pc, query, params);
+			ps.setFetchSize (this._fetchSize);
+			PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), OUTPUT_BUFFER_SIZE));
+			ResultSet rs = ps.executeQuery ();
+			try{
+				rowCount = writeResult (rs, out);
+			}finally{
+				rs.close ();
+				ps.setFetchSize (0);
+				out.flush ();
+			}
+			conn.commit ();
+		}finally{
+			this._pool.release (pc);
+		}
+		double seconds = (System.nanoTime () - start) / 1e9;
+		System.out.println (String.format ("%d rows in %.3f s (%.0f rows/sec)", rowCount, seconds, seconds > 0 ? rowCount / seconds : 0.0));
+		return rowCount;
+	}//end executeQueryAndStreamResult
+
+	/**
+	 * Method to change how many rows a streaming query fetches per round trip.
+	 * 
+	 * @param fetchSize number of rows per fetch, must be positive
+	 */
+	public void setFetchSize (int fetchSize) {
+		if (fetchSize <= 0)
+			throw new IllegalArgumentException ("fetch size must be positive: " + fetchSize);
+		this._fetchSize = fetchSize;
+	}
+
+	private int writeResult (ResultSet rs, PrintWriter out) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData ();
+		int numCol = rsmd.getColumnCount ();
+		int rowCount = 0;
+		
+		//same layout as printResult, but every write goes to the buffer
+		boolean outputHeader = true;
+		while (rs.next()){
+			if(outputHeader){
+				for(int i = 1; i <= numCol; i++){
+					out.print(rsmd.getColumnName(i));
+					out.print('\t');
+			    }
+			    out.println();
+			    outputHeader = false;
+			}
+			for (int i=1; i<=numCol; ++i){
+				out.print (rs.getString (i));
+				out.print ('\t');
+			}
+			out.println ();
+			++rowCount;
+		}//end while
+		return rowCount;
+	}
+
+	private int printResult (ResultSet rs) throws SQLException {
 		/*
 		 *  obtains the metadata object for the returned result set.  The metadata
 		 *  contains row and column info.
@@ -114,7 +381,6 @@ public class DBproject{
 			System.out.println ();
 			++rowCount;
 		}//end while
-		stmt.close ();
 		return rowCount;
 	}
 	
@@ -128,22 +394,53 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			//creates a statement object 
+			Statement stmt = pc.getConnection ().createStatement (); 
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (query); 
+			List<List<String>> result = returnResult (rs);
+			stmt.close (); 
+			return result; 
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query through the prepared statement
+	 * cache and return the results as a list of records.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params values bound to the placeholders in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executePreparedQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			try{
+				return returnResult (rs);
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executePreparedQueryAndReturnResult
+
+	private List<List<String>> returnResult (ResultSet rs) throws SQLException { 
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata 
 		 * contains row and column info. 
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData (); 
 		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
 	 
 		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
 		while (rs.next()){
 			List<String> record = new ArrayList<String>(); 
@@ -151,9 +448,8 @@ public class DBproject{
 				record.add(rs.getString (i)); 
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
 		return result; 
-	}//end executeQueryAndReturnResult
+	}
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -164,26 +460,155 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			//creates a statement object
+			Statement stmt = pc.getConnection ().createStatement ();
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
 
-		int rowCount = 0;
+			int rowCount = 0;
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			stmt.close ();
+			return rowCount;
+		}finally{
+			this._pool.release (pc);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query through the prepared statement
+	 * cache and return whether it produced a row (1) or not (0).
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params values bound to the placeholders in order
+	 * @return the number of rows returned, capped at one
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executePreparedQuery (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			try{
+				return rs.next() ? 1 : 0;
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			this._pool.release (pc);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and hand every row to a
+	 * callback as it is read.  No per-row objects are created, so the
+	 * callback can aggregate over large results without boxing.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param handler callback invoked once per row
+	 * @param params values bound to the placeholders in order
+	 * @return the number of rows read
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryForEach (String query, RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			int rowCount = 0;
+			try{
+				while (rs.next ()){
+					handler.handleRow (rs);
+					++rowCount;
+				}
+			}finally{
+				rs.close ();
+			}
+			return rowCount;
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executeQueryForEach
+
+	/**
+	 * Method to execute a parameterized query and map each row to a typed
+	 * object.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param mapper converts the current row to an object
+	 * @param params values bound to the placeholders in order
+	 * @return the mapped rows in result order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryAndMap (String query, final RowMapper<T> mapper, Object... params) throws SQLException {
+		final List<T> result = new ArrayList<T>();
+		executeQueryForEach (query, rs -> result.add (mapper.mapRow (rs)), params);
+		return result;
+	}//end executeQueryAndMap
+
+	/**
+	 * Method to execute a parameterized query and return the result in
+	 * columnar form, with int/long columns as primitive arrays and other
+	 * columns dictionary encoded.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params values bound to the placeholders in order
+	 * @return the query result by column
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryColumnar (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			ResultSet rs = prepare (pc, query, params).executeQuery ();
+			try{
+				return ColumnarResult.from (rs);
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executeQueryColumnar
+
+	/**
+	 * Fetches the cached statement for sql on the borrowed connection and
+	 * binds params to its placeholders.  String[] and int[] parameters are
+	 * bound as varchar and integer arrays, for use with = ANY(?) or unnest(?).
+	 */
+	static PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		PreparedStatement ps = pc.prepare (sql);
+		bind (pc, ps, params);
+		return ps;
+	}
+
+	static void bind (ConnectionPool.PooledConnection pc, PreparedStatement ps, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i){
+			if (params[i] instanceof String[])
+				ps.setArray (i + 1, pc.getConnection ().createArrayOf ("varchar", (String[]) params[i]));
+			else if (params[i] instanceof int[])
+				ps.setArray (i + 1, pc.getConnection ().createArrayOf ("int4", box ((int[]) params[i])));
+			else
+				ps.setObject (i + 1, params[i]);
+		}
+	}
+	
+	private static Integer[] box (int[] values) {
+		Integer[] boxed = new Integer[values.length];
+		for (int i = 0; i < values.length; ++i)
+			boxed[i] = values[i];
+		return boxed;
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys. Note that currval is
+	 * per session, so with pooled connections it only sees a nextval that
+	 * was issued on the same borrowed connection.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -191,24 +616,241 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		ConnectionPool.PooledConnection pc = this._pool.borrow ();
+		try{
+			Statement stmt = pc.getConnection ().createStatement ();
+			
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+			int value = rs.next() ? rs.getInt(1) : -1;
+			stmt.close ();
+			return value;
+		}finally{
+			this._pool.release (pc);
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to rebuild the in-memory structures derived from the base
+	 * tables.  Called once after connecting.
+	 * 
+	 * @throws java.sql.SQLException when the base tables cannot be read
 	 */
-	public void cleanup(){
+	public void warmUp() throws SQLException {
+		long start = System.currentTimeMillis();
 		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
+			int moved = this._partitions.maintain();
+			System.out.println("Moved " + moved + " posts into monthly partitions in " + (System.currentTimeMillis() - start) + " ms");
 		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			//the posts stay readable in post_default; the indexes below still need building
+			System.err.println("Unable to move posts into monthly partitions: " + e.getMessage());
+		}
+		start = System.currentTimeMillis();
+		int entries = this._timelines.rebuild();
+		System.out.println("Rebuilt newsfeed timelines (" + entries + " entries) in " + (System.currentTimeMillis() - start) + " ms");
+		start = System.currentTimeMillis();
+		int drift = this._leaderboard.reconcile();
+		System.out.println("Reconciled follower leaderboard (" + drift + " counters corrected) in " + (System.currentTimeMillis() - start) + " ms");
+		start = System.currentTimeMillis();
+		this._likes.reload();
+		System.out.println("Loaded most liked photos in " + (System.currentTimeMillis() - start) + " ms");
+		start = System.currentTimeMillis();
+		int postings = this._tags.rebuild();
+		System.out.println("Built tag index (" + postings + " postings) in " + (System.currentTimeMillis() - start) + " ms");
+		start = System.currentTimeMillis();
+		int users = this._userSearch.rebuild();
+		System.out.println("Built user search index (" + users + " users) in " + (System.currentTimeMillis() - start) + " ms");
+		this._comments.ensureIndex();
+		//rows loaded with explicit keys may be ahead of the sequences
+		this._userIds.align("DBUsers", "userID");
+		this._postIds.align("Post", "post_id");
+		this._profileIds.align("UserProfile", "profile_id");
+	}//end warmUp
+
+	public TimelineStore getTimelineStore(){
+		return this._timelines;
+	}
+
+	public FollowerLeaderboard getLeaderboard(){
+		return this._leaderboard;
+	}
+
+	public UserSearchIndex getUserSearch(){
+		return this._userSearch;
+	}
+
+	public PostPartitions getPartitions(){
+		return this._partitions;
+	}
+
+	public CommentSearch getCommentSearch(){
+		return this._comments;
+	}
+
+	public TagIndex getTagIndex(){
+		return this._tags;
+	}
+
+	public LikeCounter getLikeCounter(){
+		return this._likes;
+	}
+
+	public ProfileCounters getProfileCounters(){
+		return this._profiles;
+	}
+
+	public PhotoStore getPhotoStore(){
+		return this._photoStore;
+	}
+
+	/**
+	 * @return the photo store without the cache, for reads that should not
+	 *         displace popular photos; writes go through getPhotoStore()
+	 */
+	public PhotoStore getUncachedPhotoStore(){
+		return this._uncachedPhotoStore;
+	}
+
+	public ThumbnailPipeline getThumbnails(){
+		return this._thumbnails;
+	}
+
+	/**
+	 * Method to choose the photos a listed page shows, resolving the whole
+	 * page at once rather than one lookup per post.
+	 * 
+	 * @param page the listed posts
+	 * @param thumbnail whether thumbnails are wanted
+	 * @return the page with each photo_url replaced by its thumbnail key
+	 *         when wanted and available
+	 */
+	public Page photosOf(Page page, boolean thumbnail){
+		if (!thumbnail || page.items.isEmpty()) return page;
+		List<String> keys = new ArrayList<String>(page.items.size());
+		for (FeedItem item : page.items)
+			keys.add(PhotoStore.photoKey(item.author, item.postId));
+		Map<String, String> thumbnails;
+		try{
+			thumbnails = this._thumbnails.thumbnailsOf(keys);
+		}catch (IOException e){
+			return page;
+		}
+		List<FeedItem> items = new ArrayList<FeedItem>(page.items.size());
+		for (int i = 0; i < keys.size(); ++i){
+			String key = thumbnails.get(keys.get(i));
+			items.add(key != null ? page.items.get(i).withPhotoUrl(key) : page.items.get(i));
+		}
+		return page.withItems(items);
+	}//end photosOf
+
+	public IdAllocator getUserIds(){
+		return this._userIds;
+	}
+
+	public IdAllocator getPostIds(){
+		return this._postIds;
+	}
+
+	public IdAllocator getProfileIds(){
+		return this._profileIds;
+	}
+
+	/**
+	 * Method to read one page of the posts of everyone a user follows.
+	 * Served from the precomputed timelines when they are built and still
+	 * hold the requested page, otherwise merged at read time by the feed
+	 * engine.
+	 * 
+	 * @param username the reader
+	 * @param pageSize maximum number of posts
+	 * @param token continuation token of the previous page, or null
+	 * @return the page, in rank order
+	 * @throws java.sql.SQLException when the posts cannot be read
+	 */
+	public Page readNewsFeedPage(String username, int pageSize, String token) throws SQLException {
+		PageToken after = PageToken.decode (token);
+		List<FeedItem> items = null;
+		//one extra item tells us whether another page exists
+		if (this._timelines.isBuilt() && pageSize + 1 <= this._timelines.getCapacity())
+			items = this._timelines.readFeed(username, pageSize + 1, after);
+		if (items == null)
+			items = this._feeds.topFeed(username, pageSize + 1, after);
+		return prefetch (Page.of (items, pageSize));
+	}//end readNewsFeedPage
+
+	/**
+	 * Method to read one page of the posts matching a filter, using a
+	 * keyset predicate on (date_posted, post_id) rather than OFFSET.
+	 * 
+	 * @param filter SQL condition on Post with ? placeholders, e.g. "tags = ?"
+	 * @param pageSize maximum number of posts
+	 * @param token continuation token of the previous page, or null
+	 * @param params values bound to the placeholders of filter
+	 * @return the page, in rank order
+	 * @throws java.sql.SQLException when the posts cannot be read
+	 */
+	public Page listPosts(String filter, int pageSize, String token, Object... params) throws SQLException {
+		PageToken after = PageToken.decode (token);
+		List<Object> bound = new ArrayList<Object>(Arrays.asList (params));
+		String query = "SELECT " + FeedItem.COLUMNS + " FROM Post WHERE (" + filter + ")";
+		if (after != null){
+			query += " AND " + PageToken.KEYSET;
+			bound.addAll (Arrays.asList (after.keyParams ()));
+		}
+		query += " ORDER BY " + PageToken.ORDER_BY + " LIMIT ?";
+		bound.add (pageSize + 1);
+		return prefetch (Page.of (executeQueryAndMap (query, FeedItem.MAPPER, bound.toArray ()), pageSize));
+	}//end listPosts
+
+	private Page prefetch (Page page) {
+		if (this._prefetcher != null)
+			this._prefetcher.onListing (page.items);
+		return page;
+	}
+
+	public PhotoPrefetcher getPrefetcher(){
+		return this._prefetcher;
+	}
+
+	/**
+	 * Method to print runtime statistics of the database layer.
+	 */
+	public void printStatistics(){
+		System.out.println(this._pool.getStatistics());
+		System.out.println(this._likes.getStatistics());
+		System.out.println(this._tags.getStatistics());
+		System.out.println(this._userSearch.getStatistics());
+		System.out.println(this._comments.getStatistics());
+		System.out.println(this._partitions.getStatistics());
+		System.out.println(this._profiles.getStatistics());
+		System.out.println(this._userIds.getStatistics());
+		System.out.println(this._postIds.getStatistics());
+		System.out.println(this._profileIds.getStatistics());
+		System.out.println(this._photoStore.getStatistics());
+		System.out.println(this._thumbnails.getStatistics());
+		if (this._prefetcher != null)
+			System.out.println(this._prefetcher.getStatistics());
+	}//end printStatistics
+
+	/**
+	 * Method to close the physical connections if they are open.
+	 */
+	public void cleanup(){
+		//pending likes still need a connection
+		this._likes.close ();
+		this._profiles.close ();
+		this._thumbnails.close ();
+		if (this._prefetcher != null)
+			this._prefetcher.close ();
+		if (this._photoStore != null){
+			try{
+				this._photoStore.close ();
+			}catch (IOException e){
+				// ignored.
+			}
+		}
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -247,6 +889,11 @@ public class DBproject{
 			String dbport = "9999";
 			String user = "titillaty";
 			esql = new DBproject (dbname, dbport, user, "");
+			try{
+				esql.warmUp();
+			}catch(SQLException e){
+				System.err.println("Warning - Unable to build in-memory indexes: " + e.getMessage());
+			}
 			
 			boolean keepon = true;
 			Greeting();
@@ -266,9 +913,21 @@ public class DBproject{
 				System.out.println("11. List top photos of the database"); //view top photos of the entire database (likes)
 				System.out.println("12. List out most popular users of the database"); // view top users based on followers
 				System.out.println("13. Tag a user in a post"); // tag another user on the post
-				System.out.println("14. Upload a photo to file system!"); // upload a file to HDFS
-				System.out.println("15. Download a photo (locally)!"); // download a file from HDFS
-				System.out.println("16. EXIT\n");
+				System.out.println("14. Upload a photo to file system!"); // upload a file to the photo store
+				System.out.println("15. Download a photo (locally)!"); // download a file from the photo store
+				System.out.println("16. Unfollow a user");
+				System.out.println("17. Like a post");
+				System.out.println("18. Import follows from a file"); // bulk load username,followee pairs
+				System.out.println("19. Import tags from a file"); // bulk load post_id,username pairs
+				System.out.println("20. Show database statistics");
+				System.out.println("21. Rebuild in-memory indexes"); // reconcile leaderboards and timelines with the tables
+				System.out.println("22. Ingest a directory of user photos");
+				System.out.println("23. Generate missing thumbnails");
+				System.out.println("24. Compact photo storage");
+				System.out.println("25. Comment on a user");
+				System.out.println("26. Search comments"); // ranked word and phrase search
+				System.out.println("27. Archive posts older than a month"); // detach old monthly partitions of Post
+				System.out.println("28. EXIT\n");
 				
 				switch (readChoice()){
 					case 1: AddUser(esql); break;
@@ -284,9 +943,21 @@ public class DBproject{
 					case 11: PopularPhotos(esql); break;
 					case 12: PopularUsers(esql); break;
 					case 13: TagAUser(esql); break;
-					case 14: UploadPhoto(); break;
-					case 15: DownloadPhoto(); break;
-					case 16: keepon = false; break;
+					case 14: UploadPhoto(esql); break;
+					case 15: DownloadPhoto(esql); break;
+					case 16: UnfollowUser(esql); break;
+					case 17: LikePost(esql); break;
+					case 18: ImportFollows(esql); break;
+					case 19: ImportTags(esql); break;
+					case 20: esql.printStatistics(); break;
+					case 21: RebuildIndexes(esql); break;
+					case 22: IngestPhotos(esql); break;
+					case 23: GenerateThumbnails(esql); break;
+					case 24: CompactPhotos(esql); break;
+					case 25: CommentPost(esql); break;
+					case 26: SearchComments(esql); break;
+					case 27: ArchivePosts(esql); break;
+					case 28: keepon = false; break;
 					default : System.out.println("Unrecognized choice! Try again."); break;
 				}
 			}
@@ -319,6 +990,68 @@ public class DBproject{
 		   "*******************************************************\n");
 	}
 
+	/**
+	 * Prints a paged listing one page at a time, asking before each next page.
+	 * 
+	 * @param header column header line printed above the first page
+	 * @param format renders one item as a line
+	 * @param source produces the page following a continuation token
+	 */
+	public static void pageThrough(String header, Function<FeedItem, String> format, Page.Source source) throws Exception {
+		String token = null;
+		int pageNumber = 1;
+		do {
+			Page page = source.fetch(token);
+			if (pageNumber == 1 && page.items.isEmpty()) {
+				System.out.println("No results.");
+				return;
+			}
+			System.out.println("\n-- Page " + pageNumber + " --");
+			System.out.println(header);
+			for (FeedItem item : page.items)
+				System.out.println(format.apply(item));
+			if (!page.hasMore())
+				return;
+			System.out.print("\nPress ENTER for the next page, or q to stop: ");
+			String answer = in.readLine();
+			if (answer == null || answer.trim().equalsIgnoreCase("q"))
+				return;
+			token = page.nextToken;
+			pageNumber++;
+		} while (true);
+	}//end pageThrough
+
+	/**
+	 * Resolves what was typed to one username through the search index,
+	 * asking the operator to pick when it is ambiguous.
+	 * 
+	 * @param query a username or full name, or the beginning of one, possibly misspelled
+	 * @return the chosen username, or null if nothing matched
+	 */
+	public static String chooseUser(DBproject esql, String query) throws IOException {
+		List<UserSearchIndex.Match> matches = esql.getUserSearch().search(query, 10);
+		if (matches.isEmpty()) {
+			System.out.println("No users match '" + query + "'\n");
+			return null;
+		}
+		if (matches.get(0).isExact() && (matches.size() == 1 || !matches.get(1).isExact()))
+			return matches.get(0).username;
+		System.out.println("\tusername\tfullname\tfollowers\t");
+		for (int i = 0; i < matches.size(); ++i)
+			System.out.println((i + 1) + ".\t" + matches.get(i));
+		int choice;
+		do {
+			choice = readChoice();
+		} while (choice < 1 || choice > matches.size());
+		return matches.get(choice - 1).username;
+	}//end chooseUser
+
+	public static boolean askThumbnails() throws IOException {
+		System.out.print("Show thumbnails instead of full-size photos? (y/n): ");
+		String answer = in.readLine();
+		return answer != null && answer.trim().equalsIgnoreCase("y");
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -337,8 +1070,6 @@ public class DBproject{
 
 	public static void AddUser(DBproject esql) {//1 sandy
 		try {
-			int user_id;
-			String user_id_inString;
 			String fullname;
 			String username;
 			String email;
@@ -348,34 +1079,26 @@ public class DBproject{
 			email = in.readLine();
 			System.out.print("\tEnter a username: ");
 			username = in.readLine();
-			System.out.print("\tEnter a user ID: ");
-			user_id_inString = in.readLine();
 			System.out.print("\tEnter your full name: ");
 			fullname = in.readLine();
 			System.out.print("\tEnter new password: ");
 			user_password = in.readLine();
 			
-			user_id = Integer.parseInt(user_id_inString);
+			int user_id = esql.getUserIds().next();
+			int profile_id = esql.getProfileIds().next();
 
-			String sql_stmt_2 = String.format("INSERT INTO DBUsers (userID, fullname, username, email, user_password) VALUES ('%d','%s', '%s', '%s', '%s');", user_id, fullname, username, email, user_password);
-			esql.executeUpdate(sql_stmt_2);
-			String sql_stmt_3 = String.format("INSERT INTO UserProfile (profile_id, username_id, num_posts, followers, followings, follow_status) VALUES ('%d','%s', '%d', '%d', '%d', '%s');", user_id, username, 0, 0, 0, "TRUE");
-			esql.executeUpdate(sql_stmt_3);
+			// both rows or neither
+			esql.inTransaction(tx -> {
+				tx.update("INSERT INTO DBUsers (userID, fullname, username, email, user_password) VALUES (?, ?, ?, ?, ?)", user_id, fullname, username, email, user_password);
+				return tx.update("INSERT INTO UserProfile (profile_id, username_id, num_posts, followers, followings, follow_status) VALUES (?, ?, 0, 0, 0, 'TRUE')", profile_id, username);
+			});
 
+			esql.getUserSearch().onUser(username, fullname);
 			System.out.println("\nAdding user to database...\n");
-			// MAKE DIRECTORY IN HDFS FOR NEW USER
-			String cmd="hadoop fs -mkdir /instagram/" + username;
-			//System.out.println(cmd);
-
-			Runtime run = Runtime.getRuntime();
-			Process pr = run.exec(cmd);
-			pr.waitFor();
-			BufferedReader buf = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-			String line = "";
-			while((line=buf.readLine())!=null) {
-				System.out.println(line); }
-
-			System.out.println("\n\tSuccessfully added new user!\n");
+			// MAKE PHOTO DIRECTORY FOR NEW USER
+			esql.getPhotoStore().mkdir(PhotoStore.userDirectory(username));
+
+			System.out.println("\n\tSuccessfully added new user with ID " + user_id + "!\n");
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
@@ -387,43 +1110,46 @@ public class DBproject{
 			//String query = "INSERT INTO Post(post_id, username_id, likes, date_posted, num_comments, tags, photo_url) VALUES (";
 			//String input = "";
 			
-			int post_id;
-			String post_id_inString;
 			String username;
-			String date;
-			String tags;
+			LocalDate date;
 			String fs;
 	 
-			System.out.print("\tEnter Post_ID: ");
-			post_id_inString = in.readLine();
 			System.out.print("\tEnter Username: ");
 			username = in.readLine();		
-			System.out.print("\tEnter Date Posted (Ex: MM/DD/YYYY): ");
-			date = in.readLine();
-			System.out.print("\tEnter One Tag: ");
-			tags = in.readLine();
+			System.out.print("\tEnter Date Posted (Ex: MM/DD/YYYY or YYYY-MM-DD): ");
+			date = PostPartitions.parseDate(in.readLine());
+			System.out.print("\tEnter Tags (Ex: #music #beauty): ");
+			List<String> tags = TagIndex.normalize(in.readLine());
 			System.out.print("\tEnter Photo File Location: ");
 			fs = in.readLine();
+			if (tags.isEmpty()) {
+				System.out.println("\nA post needs at least one tag\n");
+				return;
+			}
 
-			post_id = Integer.parseInt(post_id_inString);
-
-			String query = String.format("INSERT INTO Post(post_id, username_id, likes, date_posted, num_comments, tags, photo_url) VALUES ('%d','%s', '%d', '%s', '%d', '%s', '%s');", post_id, username, 0, date, 0, tags, fs);
-			esql.executeUpdate(query);
+			int post_id = esql.getPostIds().next();
+			esql.getPartitions().ensure(date);
+
+			// the post, its registered id and its normalized tags, or neither
+			List<FeedItem> inserted = esql.inTransaction(tx -> {
+				tx.update(PostPartitions.REGISTER_POST, post_id);
+				List<FeedItem> rows = tx.query("INSERT INTO Post(post_id, username_id, likes, date_posted, num_comments, tags, photo_url) VALUES (?, ?, 0, ?, 0, ?, ?) RETURNING " + FeedItem.COLUMNS, FeedItem.MAPPER, post_id, username, java.sql.Date.valueOf(date), String.join(" ", tags), fs);
+				for (String tag : tags)
+					tx.addBatch("INSERT INTO PostTag (post_id, tag) VALUES (?, ?)", post_id, tag);
+				return rows;
+			});
+			// PUSH TO FOLLOWER TIMELINES
+			esql.getTimelineStore().onPost(inserted.get(0));
+			esql.getProfileCounters().onPost(username);
+			esql.getTagIndex().onPost(post_id, tags);
 
 			System.out.println("\nAdding photo to database...\n");
-			// ADD PHOTO TO HDFS
-			String cmd="hadoop fs -put " + fs + " /instagram/" + username + "/" + username + "-" + post_id + ".jpg";
-			//System.out.println(cmd);
-
-			Runtime run = Runtime.getRuntime();
-			Process pr = run.exec(cmd);
-			pr.waitFor();
-			BufferedReader buf = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-			String line = "";
-			while((line=buf.readLine())!=null) {
-				System.out.println(line); }
-
-			System.out.println("\n\tSuccessfully added a new post!\n");
+			// ADD PHOTO TO THE PHOTO STORE
+			String key = PhotoStore.photoKey(username, post_id);
+			esql.getPhotoStore().put(Paths.get(fs), key);
+			esql.getThumbnails().onUpload(key);
+
+			System.out.println("\n\tSuccessfully added a new post with ID " + post_id + "!\n");
 		 }catch(Exception e){
 			System.err.println (e.getMessage());
 		 }
@@ -433,9 +1159,16 @@ public class DBproject{
 		// View all the posts in the DB
 
 		try{
-			System.out.println("Here are all the posts! \n");
-			String query = "SELECT * FROM Post;"; 
-			esql.executeQueryAndPrintResult(query);
+			System.out.println("\t1: Page through posts");
+			System.out.println("\t2: Print every post at once");
+			if (readChoice() == 2) {
+				System.out.println("Here are all the posts! \n");
+				esql.executeQueryAndStreamResult("SELECT * FROM Post");
+			} else {
+				System.out.println("Here are all the posts! \n");
+				pageThrough(POST_HEADER, FeedItem::toString,
+					token -> esql.listPosts("TRUE", PAGE_SIZE, token));
+			}
 		 }catch(Exception e){
 			System.err.println (e.getMessage());
 		 }
@@ -451,8 +1184,10 @@ public class DBproject{
 			System.out.print("Enter user you want to follow: ");
 			user_being_followed = in.readLine();
 
-			String sql_stmt = String.format("INSERT INTO UserFollowing (username_id, follower) VALUES ('%s', '%s');", user_follower, user_being_followed);
-			esql.executeUpdate(sql_stmt);
+			esql.executePreparedUpdate("INSERT INTO UserFollowing (username_id, follower) VALUES (?, ?)", user_follower, user_being_followed);
+			esql.getTimelineStore().onFollow(user_follower, user_being_followed);
+			esql.getLeaderboard().onFollow(user_being_followed);
+			esql.getProfileCounters().onFollow(user_follower, user_being_followed);
 
 			System.out.println("You are now following: " + user_being_followed + "\n");
 		} catch (Exception e) {
@@ -460,13 +1195,197 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * Reads comma separated pairs from a file, skipping blank lines and,
+	 * if asked, a header line.
+	 */
+	static List<String[]> readPairs(String path, boolean header) throws IOException {
+		List<String[]> pairs = new ArrayList<String[]>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if ((header && lineNumber == 1) || line.trim().isEmpty())
+					continue;
+				String[] fields = line.split(",");
+				if (fields.length != 2)
+					throw new IOException(path + ", line " + lineNumber + ": expected 2 fields but found " + fields.length);
+				pairs.add(new String[]{ fields[0].trim(), fields[1].trim() });
+			}
+		}
+		return pairs;
+	}//end readPairs
+
+	public static void ImportFollows(DBproject esql) {//18
+		try {
+			System.out.print("Enter the path of a file of username,user_to_follow lines: ");
+			String path = in.readLine();
+			System.out.print("Does the file have a header line? (y/n): ");
+			boolean header = in.readLine().trim().equalsIgnoreCase("y");
+
+			// duplicates within the file would fail the whole import
+			Map<String, String[]> unique = new LinkedHashMap<String, String[]>();
+			for (String[] edge : readPairs(path, header))
+				unique.put(edge[0] + "," + edge[1], edge);
+			List<String[]> edges = new ArrayList<String[]>(unique.values());
+
+			long start = System.nanoTime();
+			esql.inTransaction(tx -> {
+				for (String[] edge : edges)
+					tx.addBatch("INSERT INTO UserFollowing (username_id, follower) VALUES (?, ?)", (Object[]) edge);
+				return tx.executeBatch();
+			});
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			esql.getTimelineStore().onFollows(edges);
+			for (String[] edge : edges) {
+				esql.getLeaderboard().onFollow(edge[1]);
+				esql.getProfileCounters().onFollow(edge[0], edge[1]);
+			}
+			System.out.println(String.format("Imported %d follows in %.2f s (%.0f rows/sec)\n", edges.size(), seconds, edges.size() / seconds));
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void ImportTags(DBproject esql) {//19
+		try {
+			System.out.print("Enter the path of a file of post_id,username lines: ");
+			String path = in.readLine();
+			System.out.print("Does the file have a header line? (y/n): ");
+			boolean header = in.readLine().trim().equalsIgnoreCase("y");
+
+			Map<String, Object[]> unique = new LinkedHashMap<String, Object[]>();
+			for (String[] tag : readPairs(path, header))
+				unique.put(tag[0] + "," + tag[1], new Object[]{ Integer.parseInt(tag[0]), tag[1] });
+			List<Object[]> tags = new ArrayList<Object[]>(unique.values());
+
+			long start = System.nanoTime();
+			esql.executeBatch("INSERT INTO UserTagged (pid, tagged) VALUES (?, ?)", tags);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Imported %d tags in %.2f s (%.0f rows/sec)\n", tags.size(), seconds, tags.size() / seconds));
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void RebuildIndexes(DBproject esql) {//21
+		try {
+			esql.warmUp();
+			int corrected = esql.getProfileCounters().reconcile();
+			System.out.println("Reconciled profile counters (" + corrected + " profiles corrected)");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void IngestPhotos(DBproject esql) {//22
+		try {
+			System.out.print("Enter the photo directory (one subdirectory per username): ");
+			Path root = Paths.get(in.readLine().trim());
+			System.out.print("Enter Tags for the new posts (Ex: #music #beauty): ");
+			List<String> tags = TagIndex.normalize(in.readLine());
+			if (tags.isEmpty()) {
+				System.out.println("A post needs at least one tag\n");
+				return;
+			}
+
+			int threads = Integer.getInteger("ingest.threads", Runtime.getRuntime().availableProcessors());
+			PhotoIngest ingest = new PhotoIngest(esql, root, tags, threads, Integer.getInteger("ingest.batchSize", 100));
+			long ingested = ingest.run();
+			System.out.println("Ingested " + ingested + " photos\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void GenerateThumbnails(DBproject esql) {//23
+		try {
+			long start = System.nanoTime();
+			int queued = esql.getThumbnails().backfill();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Processed %d missing thumbnails in %.2f s (%.1f thumbnails/sec)", queued, seconds, queued / seconds));
+			System.out.println(esql.getThumbnails().getStatistics() + "\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void CompactPhotos(DBproject esql) {//24
+		try {
+			long start = System.nanoTime();
+			long reclaimed = esql.getPhotoStore().compact();
+			System.out.println(String.format("Reclaimed %.1f MB in %.2f s", reclaimed / 1048576.0, (System.nanoTime() - start) / 1e9));
+			System.out.println(esql.getPhotoStore().getStatistics() + "\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void LikePost(DBproject esql) {//17
+		try {
+			System.out.print("Enter the id of the post to like: ");
+			int post_id = Integer.parseInt(in.readLine());
+
+			if (esql.executePreparedQuery("SELECT 1 FROM Post WHERE post_id = ?", post_id) == 0) {
+				System.out.println("Post #" + post_id + " does not exist\n");
+				return;
+			}
+			esql.getLikeCounter().like(post_id);
+
+			System.out.println("You liked post #" + post_id + "\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void UnfollowUser(DBproject esql) {//16
+		try {
+			String user_being_unfollowed;
+			String user_follower;
+
+			System.out.print("Enter your username: ");
+			user_follower = in.readLine();
+			System.out.print("Enter user you want to unfollow: ");
+			user_being_unfollowed = in.readLine();
+
+			int removed = esql.executePreparedUpdate("DELETE FROM UserFollowing WHERE username_id = ? AND follower = ?", user_follower, user_being_unfollowed);
+			if (removed == 0) {
+				System.out.println("You are not following: " + user_being_unfollowed + "\n");
+				return;
+			}
+			esql.getLeaderboard().onUnfollow(user_being_unfollowed);
+			esql.getProfileCounters().onUnfollow(user_follower, user_being_unfollowed);
+			//last, since it may read the unfollowed user's posts
+			esql.getTimelineStore().onUnfollow(user_follower, user_being_unfollowed);
+
+			System.out.println("You are no longer following: " + user_being_unfollowed + "\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
 	public static void SearchProfileBasedOnUser(DBproject esql) { //5
 		try {
 			String user;
 
-			System.out.print("Enter the username of the profile you want to see: ");
-			user = in.readLine();
-			esql.executeQueryAndPrintResult(String.format("SELECT * FROM UserProfile WHERE username_id = '%s';", user));
+			System.out.print("Enter the username or full name (or its beginning) of the profile you want to see: ");
+			user = chooseUser(esql, in.readLine());
+			if (user == null)
+				return;
+			List<List<String>> profile = esql.executePreparedQueryAndReturnResult("SELECT profile_id, username_id, num_posts, followers, followings, follow_status FROM UserProfile WHERE username_id = ?", user);
+			if (profile.isEmpty())
+				return;
+			// adds the changes that have not been flushed to UserProfile yet
+			long[] pending = esql.getProfileCounters().pending(user);
+			List<String> row = profile.get(0);
+			System.out.println("profile_id\tusername_id\tnum_posts\tfollowers\tfollowings\tfollow_status\t");
+			System.out.println(row.get(0) + "\t" + row.get(1) + "\t"
+				+ (Long.parseLong(row.get(2)) + pending[0]) + "\t"
+				+ (Long.parseLong(row.get(3)) + pending[1]) + "\t"
+				+ (Long.parseLong(row.get(4)) + pending[2]) + "\t"
+				+ row.get(5) + "\t");
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
@@ -475,11 +1394,13 @@ public class DBproject{
 	public static void SearchProfileBasedOnTags(DBproject esql) { //6
 		try {
 			String tag;
-			System.out.print("Enter the tag you want to search for: ");
+			System.out.print("Enter the tags you want to search for (Ex: #music AND NOT #beauty): ");
 			tag = in.readLine();
+			int[] posts = esql.getTagIndex().search(tag);
 
 			System.out.println("Here are the usernames that correspond to this tag\n");
-			esql.executeQueryAndPrintResult(String.format("SELECT username_id FROM Post WHERE tags = '%s';", tag));
+			pageThrough("username_id\t", item -> item.author + "\t",
+				token -> esql.listPosts("post_id = ANY(?)", PAGE_SIZE, token, (Object) posts));
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
@@ -490,12 +1411,14 @@ public class DBproject{
 
 		//Print message to get input from user and input fullname
 		try{
-			System.out.print("\nWhich hashtag would you like to see photos for? : ");
-			String hashtag = in.readLine();
+			System.out.print("\nWhich hashtags would you like to see photos for? (Ex: #music OR #dance) : ");
+			int[] posts = esql.getTagIndex().search(in.readLine());
+			boolean thumbnails = askThumbnails();
 
 			//Executes quesry and prints the result
 			//esql.executeQueryAndPrintResult("select photo_url from post where tags = '#" + hashtag + "'");
-			esql.executeQueryAndPrintResult(String.format("SELECT photo_url FROM Post WHERE tags = '%s';", hashtag));
+			pageThrough("photo_url\t", item -> item.photoUrl + "\t",
+				token -> esql.photosOf(esql.listPosts("post_id = ANY(?)", PAGE_SIZE, token, (Object) posts), thumbnails));
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
@@ -513,24 +1436,26 @@ public class DBproject{
 			System.out.println("---------------------------------");
 		 
 
-			switch(readChoice()){
-				// asks user to enter full name to search for and reads in input
-				case 1: System.out.print("Enter users full name: ");
-						String fullName = in.readLine();
-						System.out.println("");
-						
-						//executes sql query
-						esql.executeQueryAndPrintResult("select photo_url from post where username_id = (select username from DBusers where fullname = '" + fullName + "');");
+			int choice = readChoice();
+			boolean thumbnails = askThumbnails();
+			switch(choice){
+				// asks user to enter full name to search for
+				case 1: System.out.print("Enter users full name (or its beginning): ");
+				break;
+				// asks user to enter username to search for
+				case 2: System.out.print("Enter users username (or its beginning): ");
 				break;
-				// asks user to enter username to search for and reads in input
-				case 2: System.out.print("Enter users username: ");
-						String username = in.readLine();
-						System.out.println("");
-
-						// executes sql statement and prints result
-						esql.executeQueryAndPrintResult("select photo_url from post where username_id = '" + username + "';");
-						break;
+				default: return;
 			}
+			// both are resolved through the user search index, which tolerates typos
+			String username = chooseUser(esql, in.readLine());
+			if (username == null)
+				return;
+			System.out.println("");
+
+			// executes sql statement and prints result
+			pageThrough("photo_url\t", item -> item.photoUrl + "\t",
+				token -> esql.photosOf(esql.listPosts("username_id = ?", PAGE_SIZE, token, username), thumbnails));
 			// prints extra line for formatting	
 			System.out.println("");	
 
@@ -543,13 +1468,34 @@ public class DBproject{
 	public static void ViewPhotosOnDate(DBproject esql) {//9
 		// view photos based on date user enters
 		try{
-			//Prompts user to enter a date and reads in their input
-			System.out.print("Enter date to view posted photos(YYYY-MM-DD): ");
-			String date = in.readLine();
+			System.out.println("\t1: Photos of the last N days");
+			System.out.println("\t2: Photos between two dates");
+			System.out.println("\t3: Photos of one date");
+			LocalDate from;
+			LocalDate to;
+			switch (readChoice()){
+				case 1: System.out.print("Enter the number of days: ");
+						to = LocalDate.now();
+						from = to.minusDays(Math.max(Integer.parseInt(in.readLine().trim()), 1) - 1);
+				break;
+				case 2: System.out.print("Enter the first date (Ex: MM/DD/YYYY or YYYY-MM-DD): ");
+						from = PostPartitions.parseDate(in.readLine());
+						System.out.print("Enter the last date: ");
+						to = PostPartitions.parseDate(in.readLine());
+				break;
+				case 3: System.out.print("Enter date to view posted photos (Ex: MM/DD/YYYY or YYYY-MM-DD): ");
+						from = to = PostPartitions.parseDate(in.readLine());
+				break;
+				default: return;
+			}
+			boolean thumbnails = askThumbnails();
 			System.out.println("");
 
-			//Executes sequal statement to get posts from date
-			esql.executeQueryAndPrintResult("select * from post where date_posted = '" + date + "';");
+			//a bounded range only reads the partitions of the months it covers
+			java.sql.Date first = java.sql.Date.valueOf(from);
+			java.sql.Date last = java.sql.Date.valueOf(to);
+			pageThrough(POST_HEADER, FeedItem::toString,
+				token -> esql.photosOf(esql.listPosts("date_posted BETWEEN ? AND ?", PAGE_SIZE, token, first, last), thumbnails));
 		} catch (Exception e) {
 			//Catches exception and prints error message
 			System.out.println(e.getMessage() + "\n");
@@ -562,17 +1508,19 @@ public class DBproject{
 			//Asks for username to view newsfeed of
 			System.out.print("Enter a users FULL NAME to view their newsfeed: ");
 			String fullName = in.readLine();
+			System.out.print("How many posts per page? ");
+			int pageSize = Integer.parseInt(in.readLine());
+			boolean thumbnails = askThumbnails();
 
-			//executes sql statement that returns a list of people user is following
-			List<List<String>> result = esql.executeQueryAndReturnResult("select follower from UserFollowing where username_id = (select username from DBUsers where fullname = '" + fullName + "');");
+			//looks up the username, then reads the precomputed timeline merged with followed celebrities
+			List<String> result = esql.executeQueryAndMap("select username from DBUsers where fullname = ?", rs -> rs.getString(1), fullName);
 			
-			//checks to see if list of people following is not empty
+			//checks to see if the user exists
 			if(result != null && !result.isEmpty() ){
-				//loops through list of people following and outputs their posts
-				for(int i = 0; i < result.size(); i++){
-					esql.executeQueryAndPrintResult("select * from post where username_id = '" + result.get(i).get(0) + "';");
-					System.out.println("");
-				}
+				String username = result.get(0);
+				pageThrough(POST_HEADER, FeedItem::toString,
+					token -> esql.photosOf(esql.readNewsFeedPage(username, pageSize, token), thumbnails));
+				System.out.println("");
 			}
 		//catches exception
 		}catch (Exception e){
@@ -586,7 +1534,9 @@ public class DBproject{
 	public static void PopularPhotos(DBproject esql) {//11 
 		try {
 			System.out.println("Here are our top 10 most popular photos! \n");
-			esql.executeQueryAndPrintResult(String.format("SELECT username_id,likes,photo_url FROM Post ORDER BY likes DESC LIMIT 10;"));
+			System.out.println("username_id\tlikes\tphoto_url\t");
+			for (LikeCounter.Photo photo : esql.getLikeCounter().top(10))
+				System.out.println(photo.author + "\t" + photo.likes + "\t" + photo.photoUrl + "\t");
 			System.out.print("\n");
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
@@ -597,14 +1547,16 @@ public class DBproject{
 	public static void PopularUsers(DBproject esql) {//12 
 		try {
 			System.out.println("Here are our top 10 most popular users: \n");
-			esql.executeQueryAndPrintResult(String.format("SELECT username_id, COUNT(*) AS follower FROM UserFollowing GROUP BY username_id ORDER BY follower DESC LIMIT 10;"));
+			System.out.println("username_id\tfollowers\t");
+			for (FollowerLeaderboard.Entry entry : esql.getLeaderboard().top(10))
+				System.out.println(entry.username + "\t" + entry.getFollowers() + "\t");
 			System.out.print("\n");
 		} catch (Exception e) {
 			System.out.println(e.getMessage() + "\n");
 		}
 	}
 
-	public static void CommentPost(DBproject esql) { 
+	public static void CommentPost(DBproject esql) {//25
 		try {
 			String user;
 			String comment;
@@ -614,8 +1566,7 @@ public class DBproject{
 			System.out.print("Enter your comment: ");
 			comment = in.readLine();
 
-			String query = String.format("INSERT INTO PostComment (username_id, comment) VALUES ('%s', '%s');", user, comment);
-			esql.executeUpdate(query);
+			esql.executePreparedUpdate("INSERT INTO PostComment (username_id, comment) VALUES (?, ?)", user, comment);
 
 			System.out.println("Successfully added comment!\n"); 
 		} catch (Exception e) {
@@ -623,6 +1574,43 @@ public class DBproject{
 		}
 	}	
 
+	public static void ArchivePosts(DBproject esql) {//27
+		try {
+			System.out.print("Archive the posts of every month before the month of (Ex: MM/DD/YYYY or YYYY-MM-DD): ");
+			LocalDate date = PostPartitions.parseDate(in.readLine());
+			List<String> detached = esql.getPartitions().archiveBefore(date);
+			if (detached.isEmpty()) {
+				System.out.println("No partitions are that old\n");
+				return;
+			}
+			System.out.println("Detached " + String.join(", ", detached) + "; they can now be dumped and dropped");
+			// drop the archived posts from timelines, rankings and indexes
+			esql.warmUp();
+			System.out.print("\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
+	public static void SearchComments(DBproject esql) {//26
+		try {
+			System.out.print("Enter words or \"phrases\" to search comments for (Ex: great \"new york\" -pizza): ");
+			CommentSearch.Result result = esql.getCommentSearch().search(in.readLine(), 20);
+			if (result.matches.isEmpty()) {
+				System.out.println("No comments match\n");
+				return;
+			}
+			System.out.println("username_id\tcomment\t");
+			for (CommentSearch.Match match : result.matches)
+				System.out.println(match + "\t");
+			if (result.capped)
+				System.out.println("(best of the first " + CommentSearch.CANDIDATES + " matches; add words to narrow the search)");
+			System.out.print("\n");
+		} catch (Exception e) {
+			System.out.println(e.getMessage() + "\n");
+		}
+	}
+
 	public static void TagAUser(DBproject esql) {//13
 		try {
 			String post_id_string;
@@ -635,8 +1623,7 @@ public class DBproject{
 			taggeduser = in.readLine();
 			post_id = Integer.parseInt(post_id_string);
 
-			String sql_stmt = String.format("INSERT INTO UserTagged (pid, tagged) VALUES ('%d', '%s');", post_id, taggeduser);
-			esql.executeUpdate(sql_stmt);
+			esql.executePreparedUpdate("INSERT INTO UserTagged (pid, tagged) VALUES (?, ?)", post_id, taggeduser);
 			
 			//System.out.println("Here is the list of users tagged in this post\n");
 			//String sql_stmt1 = String.format("SELECT tagged FROM UserTagged WHERE pid = '%d';", post_id);
@@ -648,7 +1635,7 @@ public class DBproject{
 		}
 	}
 
-	public static void UploadPhoto() { //14
+	public static void UploadPhoto(DBproject esql) { //14
 		try {
 
 			String user;
@@ -662,24 +1649,18 @@ public class DBproject{
 			System.out.print("Input File Location: ");
 			fs = in.readLine();
 
-			String cmd="hadoop fs -put " + fs + " /instagram/" + user + "/" + user + "-" + num + ".jpg";
-			//System.out.println(cmd);
-
-			Runtime run = Runtime.getRuntime();
-			Process pr = run.exec(cmd);
-			pr.waitFor();
-			BufferedReader buf = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-			String line = "";
-			while((line=buf.readLine())!=null) {
-				System.out.println(line); }
-			System.out.println("Successfully uploaded photo to HDFS!");
+			long start = System.nanoTime();
+			String key = PhotoStore.photoKey(user, num);
+			long bytes = esql.getPhotoStore().put(Paths.get(fs), key);
+			esql.getThumbnails().onUpload(key);
+			System.out.printf("Successfully uploaded photo (%d bytes in %.1f ms)!%n", bytes, (System.nanoTime() - start) / 1e6);
 		} catch (Exception e) {
 				e.printStackTrace();
 			}	
 	}
 
 
-	public static void DownloadPhoto() { //15
+	public static void DownloadPhoto(DBproject esql) { //15
 		try {
 			String user;
 			String num;
@@ -688,18 +1669,28 @@ public class DBproject{
 			user = in.readLine();
 			System.out.print("Enter post #: ");
 			num = in.readLine();
-
-			//String cmd="hadoop fs -mkdir /test/javatest";
-			String cmd="hadoop fs -get /instagram/" + user + "/" + user + "-" + num + ".jpg" + " /Users/titillaty/F20-CS179G/downloadedPhotos/";
-			//System.out.println(cmd);
-			Runtime run = Runtime.getRuntime();
-			Process pr = run.exec(cmd);
-			pr.waitFor();
-			BufferedReader buf = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-			String line = "";
-			while((line=buf.readLine())!=null) {
-				System.out.println(line); }
-			System.out.println("Photo successfully downloaded!");
+			System.out.print("Save to directory [" + downloadDir + "]: ");
+			String dir = in.readLine();
+			if (dir != null && !dir.trim().isEmpty())
+				downloadDir = Paths.get(dir.trim());
+
+			long start = System.nanoTime();
+			Path target = downloadDir.resolve(user + "-" + num + ".jpg");
+			String key = PhotoStore.photoKey(user, num);
+			if (esql.getPrefetcher() != null)
+				esql.getPrefetcher().onDownload(key);
+			PhotoStore.Stat stat = esql.getPhotoStore().stat(key);
+			if (stat != null && stat.size > TRANSFER_CHUNK_BYTES) {
+				// large originals: streamed in checksummed chunks, resumable if interrupted
+				PhotoTransfer transfer = new PhotoTransfer(esql.getPhotoStore(), TRANSFER_CHUNK_BYTES);
+				PhotoTransfer.Result result = transfer.download(key, target, (done, total) ->
+					System.out.printf("\r\t%.1f of %.1f MB (%d%%)", done / 1048576.0, total / 1048576.0, done * 100 / total));
+				System.out.println();
+				System.out.println("Photo successfully downloaded to " + target + ": " + result + "!");
+			} else {
+				long bytes = esql.getPhotoStore().get(key, target);
+				System.out.printf("Photo successfully downloaded to %s (%d bytes in %.1f ms)!%n", target, bytes, (System.nanoTime() - start) / 1e6);
+			}
 		} catch (Exception e) {
 				e.printStackTrace();
 			}	
@@ -0,0 +1,365 @@
+/*
+ * Deduplicating Photo Store
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class stores every distinct photo content once. Photo keys keep
+ * their usual names, but each key is only a row of PhotoRef pointing at a
+ * blob named by the SHA-256 digest of its bytes (PhotoBlob), and the bytes
+ * live once in the backing store under /blobs/&lt;2 hex&gt;/&lt;digest&gt;.
+ *
+ * A put hashes the file with a streaming digest. When the blob already
+ * exists, which is the case for re-posts and repeated uploads, only the
+ * PhotoRef row is written and the photo is never copied. Otherwise the
+ * blob is copied to the backing store in the transaction that inserts its
+ * rows, so a key never points at a missing blob. Keys without a PhotoRef
+ * row (photos stored before deduplication) are read from the backing
+ * store directly.
+ *
+ * A blob is removed as soon as no key points at it, whether its last key
+ * is deleted or re-pointed at other content. Puts and removals lock the
+ * PhotoBlob row of every digest they touch, so a put never relies on a
+ * blob whose row a concurrent removal is deleting. A blob file is deleted
+ * only after the transaction that removed its row has ended, and only if
+ * the row is still gone, so a rolled back transaction never loses a file
+ * its rows point at. Storing and deleting the file of a digest are
+ * serialized by an advisory lock on the digest.
+ *
+ */
+
+public class DedupPhotoStore implements PhotoStore{
+	private static final String BLOBS = "/blobs/";
+	private static final int DIGEST_BUFFER = 1 << 16;
+
+	private final DBproject _db;
+	private final PhotoStore _backing;
+	//key -> digest of the keys read or written by this process
+	private final ConcurrentHashMap<String, String> _refs = new ConcurrentHashMap<String, String>();
+
+	//statistics
+	private final AtomicLong _puts = new AtomicLong();
+	private final AtomicLong _duplicates = new AtomicLong();
+	private final AtomicLong _bytesSaved = new AtomicLong();
+
+	/**
+	 * @param db the database holding PhotoBlob and PhotoRef
+	 * @param backing the store the blobs are kept in
+	 */
+	public DedupPhotoStore(DBproject db, PhotoStore backing){
+		this._db = db;
+		this._backing = backing;
+	}
+
+	static String blobKey(String digest){
+		return BLOBS + digest.substring(0, 2) + "/" + digest;
+	}
+
+	@Override
+	public void mkdir(String directory) throws IOException {
+		//keys are rows, directories only matter to photos stored before deduplication
+		this._backing.mkdir(directory);
+	}
+
+	@Override
+	public long put(Path source, String key) throws IOException {
+		String digest = digest(source);
+		long size = source.toFile().length();
+		this._puts.incrementAndGet();
+		AtomicBoolean stored = new AtomicBoolean();
+		List<String> orphaned = new ArrayList<String>();
+		boolean copied;
+		try{
+			copied = this._db.inTransaction(tx -> {
+				List<String> previous = tx.query("SELECT digest FROM PhotoRef WHERE photo_key = ? FOR UPDATE",
+					rs -> rs.getString(1), key);
+				boolean created = lockBlob(tx, digest, size);
+				if (created){
+					lockFile(tx, digest);
+					//set first: a failed copy may leave part of the file behind
+					stored.set(true);
+					storeBlob(source, digest);
+				}
+				tx.update("INSERT INTO PhotoRef (photo_key, digest) VALUES (?, ?)" +
+					" ON CONFLICT (photo_key) DO UPDATE SET digest = EXCLUDED.digest", key, digest);
+				if (!previous.isEmpty() && !previous.get(0).equals(digest) && release(tx, previous.get(0)))
+					orphaned.add(previous.get(0));
+				return created;
+			});
+		}catch (SQLException e){
+			IOException failure = failure("Unable to record photo " + key, e);
+			//the blob row rolled back, so the file copied for it belongs to nothing
+			if (stored.get()){
+				try{
+					discard(digest);
+				}catch (IOException discard){
+					failure.addSuppressed(discard);
+				}
+			}
+			throw failure;
+		}
+		discardAll(orphaned);
+		if (!copied){
+			this._duplicates.incrementAndGet();
+			this._bytesSaved.addAndGet(size);
+		}
+		this._refs.put(key, digest);
+		return size;
+	}//end put
+
+	@Override
+	public long get(String key, Path target) throws IOException {
+		String digest = lookup(key);
+		return this._backing.get(digest == null ? key : blobKey(digest), target);
+	}
+
+	@Override
+	public long read(String key, long offset, long length, WritableByteChannel out) throws IOException {
+		String digest = lookup(key);
+		return this._backing.read(digest == null ? key : blobKey(digest), offset, length, out);
+	}
+
+	@Override
+	public Stat stat(String key) throws IOException {
+		String digest = lookup(key);
+		if (digest == null) return this._backing.stat(key);
+		Stat blob = this._backing.stat(blobKey(digest));
+		return blob == null ? null : new Stat(key, blob.size, blob.modifiedMillis);
+	}
+
+	/**
+	 * Resolves every key not cached yet with one PhotoRef query, then stats
+	 * the blobs in the backing store.
+	 */
+	@Override
+	public Map<String, Stat> statAll(Collection<String> keys) throws IOException {
+		List<String> unknown = new ArrayList<String>();
+		for (String key : keys){
+			if (!this._refs.containsKey(key)) unknown.add(key);
+		}
+		if (!unknown.isEmpty()){
+			try{
+				this._db.executeQueryForEach("SELECT photo_key, digest FROM PhotoRef WHERE photo_key = ANY(?)",
+					rs -> this._refs.put(rs.getString(1), rs.getString(2)), (Object) unknown.toArray(new String[0]));
+			}catch (SQLException e){
+				throw new IOException("Unable to look up photos: " + e.getMessage(), e);
+			}
+		}
+		Map<String, Stat> stats = new HashMap<String, Stat>();
+		for (String key : keys){
+			String digest = this._refs.get(key);
+			Stat stat = digest == null ? this._backing.stat(key) : this._backing.stat(blobKey(digest));
+			if (stat != null) stats.put(key, new Stat(key, stat.size, stat.modifiedMillis));
+		}
+		return stats;
+	}//end statAll
+
+	/**
+	 * Removes the key, and the blob once no other key points at it.
+	 */
+	@Override
+	public boolean delete(String key) throws IOException {
+		this._refs.remove(key);
+		List<String> orphaned = new ArrayList<String>();
+		List<String> removed;
+		try{
+			removed = this._db.inTransaction(tx -> {
+				List<String> digests = tx.query("DELETE FROM PhotoRef WHERE photo_key = ? RETURNING digest",
+					rs -> rs.getString(1), key);
+				for (String digest : digests){
+					if (release(tx, digest)) orphaned.add(digest);
+				}
+				return digests;
+			});
+		}catch (SQLException e){
+			throw failure("Unable to delete photo " + key, e);
+		}
+		discardAll(orphaned);
+		return removed.isEmpty() ? this._backing.delete(key) : true;
+	}//end delete
+
+	/**
+	 * Locks the PhotoBlob row of a digest, inserting it if it is missing.
+	 * 
+	 * @return whether the row was inserted, i.e. the blob must be stored
+	 */
+	private static boolean lockBlob(Transaction tx, String digest, long size) throws SQLException {
+		while (true){
+			//a new row is locked by our insert, an existing one by FOR UPDATE
+			if (tx.update("INSERT INTO PhotoBlob (digest, size) VALUES (?, ?) ON CONFLICT DO NOTHING", digest, size) == 1)
+				return true;
+			if (!tx.query("SELECT 1 FROM PhotoBlob WHERE digest = ? FOR UPDATE", rs -> rs.getInt(1), digest).isEmpty())
+				return false;
+			//removed between the two statements; insert it again
+		}
+	}//end lockBlob
+
+	/**
+	 * Drops the row of a blob that no key points at any more. Its file is
+	 * left for discard() once the transaction has committed.
+	 * 
+	 * @return whether the row was dropped
+	 */
+	private static boolean release(Transaction tx, String digest) throws SQLException {
+		tx.query("SELECT 1 FROM PhotoBlob WHERE digest = ? FOR UPDATE", rs -> rs.getInt(1), digest);
+		return !tx.query("DELETE FROM PhotoBlob b WHERE digest = ?" +
+			" AND NOT EXISTS (SELECT 1 FROM PhotoRef r WHERE r.digest = b.digest) RETURNING digest",
+			rs -> rs.getString(1), digest).isEmpty();
+	}//end release
+
+	/**
+	 * Takes the advisory lock under which the file of a digest is stored or
+	 * deleted, held until the transaction ends.
+	 */
+	private static void lockFile(Transaction tx, String digest) throws SQLException {
+		tx.query("SELECT pg_advisory_xact_lock(hashtext(?))", rs -> 1, digest);
+	}
+
+	/**
+	 * Deletes the file of a blob whose row is gone. A put that stored the
+	 * same content again meanwhile holds the file lock until it commits
+	 * its row, after which the row is seen and the file kept.
+	 */
+	private void discard(String digest) throws IOException {
+		try{
+			this._db.inTransaction(tx -> {
+				lockFile(tx, digest);
+				if (tx.query("SELECT 1 FROM PhotoBlob WHERE digest = ?", rs -> rs.getInt(1), digest).isEmpty())
+					deleteBlob(digest);
+				return null;
+			});
+		}catch (SQLException e){
+			throw failure("Unable to delete blob " + digest, e);
+		}
+	}//end discard
+
+	/**
+	 * Discards the blobs orphaned by a committed transaction. A failure only
+	 * leaves an unreferenced file behind, so it is reported, not thrown.
+	 */
+	private void discardAll(List<String> digests){
+		for (String digest : digests){
+			try{
+				discard(digest);
+			}catch (IOException e){
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	private void deleteBlob(String digest) throws SQLException {
+		try{
+			this._backing.delete(blobKey(digest));
+		}catch (IOException e){
+			throw new SQLException("Unable to delete blob " + digest, e);
+		}
+	}
+
+	private void storeBlob(Path source, String digest) throws SQLException {
+		try{
+			this._backing.put(source, blobKey(digest));
+		}catch (IOException e){
+			throw new SQLException("Unable to store blob " + digest, e);
+		}
+	}
+
+	/**
+	 * @return the IOException behind a failed transaction, or one wrapping the SQLException
+	 */
+	private static IOException failure(String message, SQLException e){
+		if (e.getCause() instanceof IOException) return (IOException) e.getCause();
+		return new IOException(message + ": " + e.getMessage(), e);
+	}
+
+	/**
+	 * @return the digest a key points at, or null if it has no PhotoRef row
+	 */
+	private String lookup(String key) throws IOException {
+		String digest = this._refs.get(key);
+		if (digest != null) return digest;
+		try{
+			List<String> found = this._db.executeQueryAndMap(
+				"SELECT digest FROM PhotoRef WHERE photo_key = ?", rs -> rs.getString(1), key);
+			if (found.isEmpty()) return null;
+			digest = found.get(0);
+		}catch (SQLException e){
+			throw new IOException("Unable to look up photo " + key + ": " + e.getMessage(), e);
+		}
+		this._refs.put(key, digest);
+		return digest;
+	}//end lookup
+
+	/**
+	 * Hashes a file in fixed-size reads, so photos of any size are hashed
+	 * in constant memory.
+	 * 
+	 * @param file the file to hash
+	 * @return the lower-case hex SHA-256 of its contents
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	static String digest(Path file) throws IOException {
+		MessageDigest sha;
+		try{
+			sha = MessageDigest.getInstance("SHA-256");
+		}catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER);
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+			while (in.read(buffer) >= 0){
+				buffer.flip();
+				sha.update(buffer);
+				buffer.clear();
+			}
+		}
+		StringBuilder hex = new StringBuilder(64);
+		for (byte b : sha.digest())
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}//end digest
+
+	@Override
+	public long compact() throws IOException {
+		return this._backing.compact();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this._backing.close();
+	}
+
+	@Override
+	public String getStatistics(){
+		long puts = this._puts.get();
+		long duplicates = this._duplicates.get();
+		return String.format("Photos (deduplicated over %s): puts=%d duplicates=%d (%.1f%%) saved=%.1f MB",
+			this._backing, puts, duplicates, puts == 0 ? 0.0 : 100.0 * duplicates / puts,
+			this._bytesSaved.get() / 1048576.0);
+	}
+}//end DedupPhotoStore
@@ -0,0 +1,129 @@
+/*
+ * Feed Engine
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class builds a ranked newsfeed at read time, without precomputed
+ * timelines. One query fetches at most limit posts per followee, each run
+ * already sorted by the (username_id, date_posted, post_id) index, and the
+ * runs are merged through a heap that stops after limit items. The work
+ * therefore grows with limit and the number of followees, not with the
+ * number of posts they have made.
+ *
+ */
+
+public class FeedEngine{
+	private static final String QUERY =
+		"SELECT p." + FeedItem.COLUMNS.replace(", ", ", p.") +
+		" FROM UserFollowing f CROSS JOIN LATERAL (" +
+		"SELECT " + FeedItem.COLUMNS + " FROM Post WHERE username_id = f.follower" +
+		" ORDER BY " + PageToken.ORDER_BY + " LIMIT ?) p" +
+		" WHERE f.username_id = ?";
+	private static final String QUERY_AFTER =
+		"SELECT p." + FeedItem.COLUMNS.replace(", ", ", p.") +
+		" FROM UserFollowing f CROSS JOIN LATERAL (" +
+		"SELECT " + FeedItem.COLUMNS + " FROM Post WHERE username_id = f.follower AND " + PageToken.KEYSET +
+		" ORDER BY " + PageToken.ORDER_BY + " LIMIT ?) p" +
+		" WHERE f.username_id = ?";
+
+	private final DBproject _db;
+
+	/**
+	 * Head of one followee's sorted run of posts.
+	 */
+	private static class Cursor {
+		final List<FeedItem> run;
+		int pos = 0;
+
+		Cursor(List<FeedItem> run){
+			this.run = run;
+		}
+
+		FeedItem head(){
+			return this.run.get(this.pos);
+		}
+	}
+
+	public FeedEngine(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Returns the latest posts of everyone the user follows, ranked by date
+	 * posted and then post_id.
+	 *
+	 * @param user the reader
+	 * @param limit maximum number of items
+	 * @param after continue after this position, or null for the first page
+	 * @return up to limit items in rank order
+	 * @throws java.sql.SQLException when the posts cannot be read
+	 */
+	public List<FeedItem> topFeed(String user, int limit, PageToken after) throws SQLException {
+		final Map<String, List<FeedItem>> runs = new HashMap<String, List<FeedItem>>();
+		Object[] params;
+		if (after == null){
+			params = new Object[]{ limit, user };
+		}else{
+			Object[] key = after.keyParams();
+			params = new Object[]{ key[0], key[1], limit, user };
+		}
+		this._db.executeQueryForEach(after == null ? QUERY : QUERY_AFTER, rs -> {
+			FeedItem item = FeedItem.MAPPER.mapRow(rs);
+			List<FeedItem> run = runs.get(item.author);
+			if (run == null){
+				run = new ArrayList<FeedItem>();
+				runs.put(item.author, run);
+			}
+			run.add(item);
+		}, params);
+		return merge(runs.values(), limit);
+	}//end topFeed
+
+	/**
+	 * k-way merge of rank-ordered runs, stopping after limit items.
+	 *
+	 * @param runs lists each sorted by FeedItem.RANKED
+	 * @param limit maximum number of items
+	 * @return up to limit items in rank order
+	 */
+	static List<FeedItem> merge(Iterable<List<FeedItem>> runs, int limit){
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(
+			(a, b) -> FeedItem.RANKED.compare(a.head(), b.head()));
+		for (List<FeedItem> run : runs){
+			if (run.isEmpty()) continue;
+			//the lateral subquery returns each run in index order; guard against plans that do not
+			if (!isSorted(run)) run.sort(FeedItem.RANKED);
+			heap.add(new Cursor(run));
+		}
+		List<FeedItem> result = new ArrayList<FeedItem>(limit);
+		while (result.size() < limit && !heap.isEmpty()){
+			Cursor c = heap.poll();
+			result.add(c.head());
+			if (++c.pos < c.run.size()) heap.add(c);
+		}
+		return result;
+	}//end merge
+
+	private static boolean isSorted(List<FeedItem> run){
+		for (int i = 1; i < run.size(); ++i){
+			if (FeedItem.RANKED.compare(run.get(i - 1), run.get(i)) > 0) return false;
+		}
+		return true;
+	}
+}//end FeedEngine
@@ -0,0 +1,80 @@
+/*
+ * Feed Item
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.time.LocalDate;
+import java.util.Comparator;
+
+/**
+ * One post as it appears in a newsfeed or listing. Items rank newest
+ * first, then by post_id, which is also the keyset order of PageToken.
+ *
+ */
+
+public class FeedItem{
+	/**
+	 * Orders items by rank: newest first, then latest post_id.
+	 */
+	public static final Comparator<FeedItem> RANKED = new Comparator<FeedItem>(){
+		@Override
+		public int compare(FeedItem a, FeedItem b){
+			int c = b.datePosted.compareTo(a.datePosted);
+			return c != 0 ? c : Integer.compare(b.postId, a.postId);
+		}
+	};
+
+	/**
+	 * Maps a row with post_id, username_id, likes, date_posted and photo_url
+	 * columns.
+	 */
+	public static final RowMapper<FeedItem> MAPPER = rs -> new FeedItem(
+		rs.getInt("post_id"),
+		rs.getString("username_id"),
+		rs.getInt("likes"),
+		rs.getDate("date_posted").toLocalDate(),
+		rs.getString("photo_url"));
+
+	/**
+	 * Column list matching MAPPER, for use in SELECT and RETURNING clauses.
+	 */
+	public static final String COLUMNS = "post_id, username_id, likes, date_posted, photo_url";
+
+	public final int postId;
+	public final String author;
+	public final int likes;
+	public final LocalDate datePosted;
+	public final String photoUrl;
+
+	public FeedItem(int postId, String author, int likes, LocalDate datePosted, String photoUrl){
+		this.postId = postId;
+		this.author = author;
+		this.likes = likes;
+		this.datePosted = datePosted;
+		this.photoUrl = photoUrl;
+	}
+
+	/**
+	 * @param photoUrl the photo to show instead, e.g. a thumbnail
+	 * @return a copy of this item pointing at another photo
+	 */
+	public FeedItem withPhotoUrl(String photoUrl){
+		return new FeedItem(this.postId, this.author, this.likes, this.datePosted, photoUrl);
+	}
+
+	/**
+	 * @return the item as one tab separated line, in COLUMNS order
+	 */
+	@Override
+	public String toString(){
+		return this.postId + "\t" + this.author + "\t" + this.likes + "\t" + this.datePosted + "\t" + this.photoUrl + "\t";
+	}
+}//end FeedItem
@@ -0,0 +1,156 @@
+/*
+ * Follower Leaderboard
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class keeps a follower counter per user and a sorted index over
+ * those counters, so the most popular users can be listed without
+ * aggregating UserFollowing. A follow or unfollow moves one entry in the
+ * index (O(log n)) and reading the top K walks K entries.
+ *
+ * The counters are derived from UserFollowing, where a row
+ * (username_id, follower) means username_id follows the user in the
+ * follower column. reconcile() recomputes them from the table.
+ *
+ */
+
+public class FollowerLeaderboard{
+	private final DBproject _db;
+
+	private final Map<String, Entry> _entries = new HashMap<String, Entry>();
+	private final TreeSet<Entry> _ranking = new TreeSet<Entry>();
+
+	/**
+	 * One user's follower count. Ordered by count descending, then by name
+	 * so that equal counts are distinct keys in the ranking.
+	 */
+	public static class Entry implements Comparable<Entry> {
+		public final String username;
+		private long _followers;
+
+		Entry(String username, long followers){
+			this.username = username;
+			this._followers = followers;
+		}
+
+		public long getFollowers(){
+			return this._followers;
+		}
+
+		@Override
+		public int compareTo(Entry other){
+			int c = Long.compare(other._followers, this._followers);
+			return c != 0 ? c : this.username.compareTo(other.username);
+		}
+	}//end Entry
+
+	public FollowerLeaderboard(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Records a new follower of a user.
+	 *
+	 * @param followee the user who gained a follower
+	 */
+	public synchronized void onFollow(String followee){
+		adjust(followee, 1);
+	}
+
+	/**
+	 * Records a lost follower of a user.
+	 *
+	 * @param followee the user who lost a follower
+	 */
+	public synchronized void onUnfollow(String followee){
+		adjust(followee, -1);
+	}
+
+	/**
+	 * @param username a user
+	 * @return the user's current follower count
+	 */
+	public synchronized long followers(String username){
+		Entry e = this._entries.get(username);
+		return e == null ? 0 : e._followers;
+	}
+
+	/**
+	 * @param k number of users to return
+	 * @return snapshot of the k users with the most followers, most followed first
+	 */
+	public synchronized List<Entry> top(int k){
+		List<Entry> result = new ArrayList<Entry>(k);
+		Iterator<Entry> it = this._ranking.iterator();
+		while (it.hasNext() && result.size() < k){
+			Entry e = it.next();
+			result.add(new Entry(e.username, e._followers));
+		}
+		return result;
+	}//end top
+
+	/**
+	 * Recomputes every counter from UserFollowing and replaces the in-memory
+	 * state. Run at startup and whenever drift is suspected.
+	 *
+	 * @return the number of users whose counter was wrong
+	 * @throws java.sql.SQLException when UserFollowing cannot be read
+	 */
+	public int reconcile() throws SQLException {
+		final Map<String, Long> counts = new HashMap<String, Long>();
+		this._db.executeQueryForEach("SELECT follower, COUNT(*) FROM UserFollowing GROUP BY follower",
+			rs -> counts.put(rs.getString(1), rs.getLong(2)));
+
+		synchronized (this){
+			int drift = 0;
+			for (Entry e : this._entries.values()){
+				Long actual = counts.get(e.username);
+				if (actual == null ? e._followers != 0 : actual.longValue() != e._followers) drift++;
+			}
+			for (String user : counts.keySet()){
+				if (!this._entries.containsKey(user)) drift++;
+			}
+			this._entries.clear();
+			this._ranking.clear();
+			for (Map.Entry<String, Long> c : counts.entrySet()){
+				Entry e = new Entry(c.getKey(), c.getValue());
+				this._entries.put(e.username, e);
+				this._ranking.add(e);
+			}
+			return drift;
+		}
+	}//end reconcile
+
+	private void adjust(String user, long delta){
+		Entry e = this._entries.get(user);
+		if (e == null){
+			e = new Entry(user, 0);
+			this._entries.put(user, e);
+		}else{
+			this._ranking.remove(e);
+		}
+		e._followers = Math.max(0, e._followers + delta);
+		if (e._followers == 0){
+			this._entries.remove(user);
+		}else{
+			this._ranking.add(e);
+		}
+	}//end adjust
+}//end FollowerLeaderboard
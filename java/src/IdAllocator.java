@@ -0,0 +1,132 @@
+/*
+ * ID Allocator
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class hands out primary keys drawn from a database sequence without
+ * a round trip per key. It reserves a block of values with one query
+ * (hi/lo style) and serves them from memory until the block runs out.
+ *
+ * Every value comes from nextval, so keys never collide with another
+ * allocator, another client, or a later restart; a restart only leaves
+ * the unused rest of its block as a gap. Taking a key from the current
+ * block is a single getAndIncrement; only the thread that exhausts a block
+ * fetches the next one while the others wait for it.
+ *
+ */
+
+public class IdAllocator{
+	private static final String RESERVE =
+		"SELECT nextval(CAST(? AS regclass)) FROM generate_series(1, ?)";
+
+	private final DBproject _db;
+	private final String _sequence;
+	private final int _blockSize;
+	private final AtomicReference<Block> _current = new AtomicReference<Block>(new Block(new int[0]));
+
+	//statistics
+	private final AtomicLong _allocated = new AtomicLong();
+	private final AtomicLong _blocks = new AtomicLong();
+
+	/**
+	 * Values reserved by one round trip and the index of the next free one.
+	 */
+	private static class Block{
+		final int[] ids;
+		final AtomicInteger next = new AtomicInteger();
+
+		Block(int[] ids){
+			this.ids = ids;
+		}
+	}
+
+	/**
+	 * @param db the database the sequence lives in
+	 * @param sequence name of the sequence, e.g. "post_id"
+	 * @param blockSize number of values reserved per round trip
+	 */
+	public IdAllocator(DBproject db, String sequence, int blockSize){
+		if (blockSize < 1)
+			throw new IllegalArgumentException("blockSize must be positive");
+		this._db = db;
+		this._sequence = sequence;
+		this._blockSize = blockSize;
+	}
+
+	/**
+	 * Method to take the next unused key.
+	 * 
+	 * @return a value of the sequence no other caller has received
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int next() throws SQLException {
+		while (true){
+			Block block = this._current.get();
+			int i = block.next.getAndIncrement();
+			if (i < block.ids.length){
+				this._allocated.incrementAndGet();
+				return block.ids[i];
+			}
+			refill(block);
+		}
+	}//end next
+
+	private synchronized void refill(Block exhausted) throws SQLException {
+		//another thread already replaced it while we waited
+		if (this._current.get() != exhausted) return;
+		List<Integer> reserved = this._db.executeQueryAndMap(RESERVE, rs -> rs.getInt(1), this._sequence, this._blockSize);
+		int[] ids = new int[reserved.size()];
+		for (int i = 0; i < ids.length; ++i)
+			ids[i] = reserved.get(i);
+		this._current.set(new Block(ids));
+		this._blocks.incrementAndGet();
+	}//end refill
+
+	/**
+	 * Method to move the sequence past the largest key already stored, so
+	 * rows inserted with explicit keys (seed scripts, bulk loads) are never
+	 * handed out again. Values already reserved in memory are discarded.
+	 * 
+	 * @param table the table keyed by this sequence
+	 * @param column the key column
+	 * @return the value the sequence now stands at
+	 * @throws java.sql.SQLException when the sequence cannot be advanced
+	 */
+	public synchronized long align(String table, String column) throws SQLException {
+		String query = String.format(
+			"SELECT setval(CAST(? AS regclass), GREATEST((SELECT COALESCE(max(%s), 0) FROM %s), (SELECT last_value FROM %s)))",
+			column, table, this._sequence);
+		long value = this._db.executeQueryAndMap(query, rs -> rs.getLong(1), this._sequence).get(0);
+		this._current.set(new Block(new int[0]));
+		return value;
+	}//end align
+
+	public String getSequence(){
+		return this._sequence;
+	}
+
+	/**
+	 * @return a one-line summary of allocations since startup
+	 */
+	public String getStatistics(){
+		long blocks = this._blocks.get();
+		long allocated = this._allocated.get();
+		return String.format("IDs %s: allocated=%d blocks=%d (%.1f keys per round trip)",
+			this._sequence, allocated, blocks, blocks == 0 ? 0.0 : (double) allocated / blocks);
+	}
+}//end IdAllocator
@@ -0,0 +1,287 @@
+/*
+ * Like Counter
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class absorbs likes in memory and writes them to Post.likes in
+ * periodic coalesced batches, so a burst of likes on one popular post
+ * becomes one UPDATE instead of one row lock per like.
+ *
+ * Each post's pending likes live in a LongAdder, which a like finds with a
+ * plain lookup and increments without locking. Idle adders are dropped by
+ * the flusher under the write side of a StampedLock; a like validates an
+ * optimistic stamp after adding and, only if a removal ran meanwhile,
+ * checks under the read side that its adder is still mapped before adding
+ * again elsewhere. A flush takes what each adder
+ * holds, subtracts exactly that amount (so likes arriving meanwhile are
+ * kept for the next flush), and applies all deltas with a single
+ * UPDATE ... FROM unnest(ids, deltas) RETURNING. The returned totals keep
+ * a bounded top-K of the most liked photos current, which PopularPhotos
+ * reads instead of sorting Post by likes.
+ *
+ */
+
+public class LikeCounter{
+	private static final String FLUSH =
+		"UPDATE Post p SET likes = p.likes + d.delta FROM unnest(?, ?) AS d(id, delta)" +
+		" WHERE p.post_id = d.id RETURNING p.post_id, p.username_id, p.likes, p.photo_url";
+
+	private final DBproject _db;
+	private final int _topCapacity;
+	private final long _flushMillis;
+	private final ConcurrentHashMap<Integer, LongAdder> _pending = new ConcurrentHashMap<Integer, LongAdder>();
+	//write-locked while idle adders are removed from _pending
+	private final StampedLock _removal = new StampedLock();
+	private ScheduledExecutorService _flusher = null;
+
+	//most liked photos, guarded by this
+	private final Map<Integer, Photo> _photos = new HashMap<Integer, Photo>();
+	private final TreeSet<Photo> _ranking = new TreeSet<Photo>();
+
+	//statistics
+	private final LongAdder _likes = new LongAdder();
+	private final AtomicLong _flushes = new AtomicLong();
+	private final AtomicLong _rowsFlushed = new AtomicLong();
+	private final AtomicLong _flushNanos = new AtomicLong();
+
+	/**
+	 * A photo in the top-K, ordered by likes descending then post_id.
+	 */
+	public static class Photo implements Comparable<Photo> {
+		public final int postId;
+		public final String author;
+		public final String photoUrl;
+		public final long likes;
+
+		Photo(int postId, String author, long likes, String photoUrl){
+			this.postId = postId;
+			this.author = author;
+			this.likes = likes;
+			this.photoUrl = photoUrl;
+		}
+
+		@Override
+		public int compareTo(Photo other){
+			int c = Long.compare(other.likes, this.likes);
+			return c != 0 ? c : Integer.compare(this.postId, other.postId);
+		}
+	}//end Photo
+
+	/**
+	 * @param db the database likes are written to
+	 * @param topCapacity number of photos tracked by the live top-K
+	 * @param flushMillis interval between batched writes
+	 */
+	public LikeCounter(DBproject db, int topCapacity, long flushMillis){
+		this._db = db;
+		this._topCapacity = topCapacity;
+		this._flushMillis = flushMillis;
+	}
+
+	/**
+	 * Starts the background flusher.
+	 */
+	public synchronized void start(){
+		if (this._flusher != null) return;
+		this._flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "like-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		this._flusher.scheduleWithFixedDelay(() -> {
+			try{
+				flush();
+			}catch (SQLException e){
+				System.err.println("Unable to flush likes: " + e.getMessage());
+			}
+		}, this._flushMillis, this._flushMillis, TimeUnit.MILLISECONDS);
+	}//end start
+
+	/**
+	 * Records one like. Never touches the database.
+	 *
+	 * @param postId the liked post
+	 */
+	public void like(int postId){
+		add(postId, 1);
+		this._likes.increment();
+	}
+
+	/**
+	 * Writes every pending like to Post in one statement and refreshes the
+	 * top-K from the returned totals.
+	 *
+	 * @return the number of posts updated
+	 * @throws java.sql.SQLException when the update fails; the likes stay pending
+	 */
+	public synchronized int flush() throws SQLException {
+		long start = System.nanoTime();
+		List<Integer> ids = new ArrayList<Integer>();
+		List<Integer> deltas = new ArrayList<Integer>();
+		List<Integer> idle = new ArrayList<Integer>();
+		for (Map.Entry<Integer, LongAdder> e : this._pending.entrySet()){
+			long delta = e.getValue().sum();
+			if (delta == 0){
+				idle.add(e.getKey());
+				continue;
+			}
+			int taken = (int) Math.min(delta, Integer.MAX_VALUE);
+			e.getValue().add(-taken);
+			ids.add(e.getKey());
+			deltas.add(taken);
+		}
+		removeIdle(idle);
+		if (ids.isEmpty()) return 0;
+
+		int[] idArray = new int[ids.size()];
+		int[] deltaArray = new int[ids.size()];
+		for (int i = 0; i < idArray.length; ++i){
+			idArray[i] = ids.get(i);
+			deltaArray[i] = deltas.get(i);
+		}
+		List<Photo> updated;
+		try{
+			updated = this._db.executeQueryAndMap(FLUSH,
+				rs -> new Photo(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4)),
+				idArray, deltaArray);
+		}catch (SQLException e){
+			for (int i = 0; i < idArray.length; ++i) add(idArray[i], deltaArray[i]);
+			throw e;
+		}
+		for (Photo p : updated) offer(p);
+
+		this._flushes.incrementAndGet();
+		this._rowsFlushed.addAndGet(updated.size());
+		this._flushNanos.addAndGet(System.nanoTime() - start);
+		return updated.size();
+	}//end flush
+
+	/**
+	 * Reloads the top-K from Post. Run at startup, after flushing.
+	 *
+	 * @throws java.sql.SQLException when Post cannot be read
+	 */
+	public synchronized void reload() throws SQLException {
+		flush();
+		List<Photo> top = this._db.executeQueryAndMap(
+			"SELECT post_id, username_id, likes, photo_url FROM Post ORDER BY likes DESC, post_id LIMIT ?",
+			rs -> new Photo(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4)),
+			this._topCapacity);
+		this._photos.clear();
+		this._ranking.clear();
+		for (Photo p : top) offer(p);
+	}//end reload
+
+	/**
+	 * @param k number of photos, at most the tracked capacity
+	 * @return the k most liked photos including likes not yet flushed
+	 */
+	public synchronized List<Photo> top(int k){
+		List<Photo> live = new ArrayList<Photo>(this._ranking.size());
+		for (Photo p : this._ranking){
+			LongAdder pending = this._pending.get(p.postId);
+			long extra = pending == null ? 0 : pending.sum();
+			live.add(extra == 0 ? p : new Photo(p.postId, p.author, p.likes + extra, p.photoUrl));
+		}
+		Photo[] sorted = live.toArray(new Photo[0]);
+		Arrays.sort(sorted);
+		return Arrays.asList(sorted).subList(0, Math.min(k, sorted.length));
+	}//end top
+
+	/**
+	 * Flushes outstanding likes and stops the flusher.
+	 */
+	public void close(){
+		synchronized (this){
+			if (this._flusher != null) this._flusher.shutdownNow();
+			this._flusher = null;
+		}
+		try{
+			flush();
+		}catch (SQLException e){
+			System.err.println("Unable to flush likes: " + e.getMessage());
+		}
+	}//end close
+
+	public String getStatistics(){
+		long flushes = this._flushes.get();
+		return String.format("Likes: accepted=%d pending posts=%d flushes=%d rowsFlushed=%d avgFlush=%.1fms",
+			this._likes.sum(), this._pending.size(), flushes, this._rowsFlushed.get(),
+			flushes == 0 ? 0.0 : this._flushNanos.get() / 1e6 / flushes);
+	}
+
+	private void add(int postId, long delta){
+		long stamp = this._removal.tryOptimisticRead();
+		LongAdder adder = stamp == 0 ? null : this._pending.get(postId);
+		if (adder != null){
+			adder.add(delta);
+			if (this._removal.validate(stamp)) return;
+		}
+		stamp = this._removal.readLock();
+		try{
+			//a removal that ran meanwhile either saw the delta and kept the adder, or dropped it unseen
+			if (adder != null && this._pending.get(postId) == adder) return;
+			this._pending.computeIfAbsent(postId, k -> new LongAdder()).add(delta);
+		}finally{
+			this._removal.unlockRead(stamp);
+		}
+	}//end add
+
+	/**
+	 * Drops the adders of posts nobody liked since the last flush. A like
+	 * racing the removal notices the stamp change and re-checks its adder.
+	 */
+	private void removeIdle(List<Integer> idle){
+		if (idle.isEmpty()) return;
+		long stamp = this._removal.writeLock();
+		try{
+			for (Integer postId : idle){
+				LongAdder adder = this._pending.get(postId);
+				if (adder != null && adder.sum() == 0) this._pending.remove(postId, adder);
+			}
+		}finally{
+			this._removal.unlockWrite(stamp);
+		}
+	}//end removeIdle
+
+	/**
+	 * Inserts or repositions a photo and trims the ranking to capacity.
+	 * Likes only grow, so a photo outside the ranking can only enter it by
+	 * being liked, and then it shows up in a flush.
+	 */
+	private void offer(Photo p){
+		Photo old = this._photos.remove(p.postId);
+		if (old != null) this._ranking.remove(old);
+		if (this._ranking.size() >= this._topCapacity && p.compareTo(this._ranking.last()) > 0) return;
+		this._photos.put(p.postId, p);
+		this._ranking.add(p);
+		if (this._ranking.size() > this._topCapacity){
+			Photo evicted = this._ranking.pollLast();
+			this._photos.remove(evicted.postId);
+		}
+	}//end offer
+}//end LikeCounter
@@ -0,0 +1,158 @@
+/*
+ * Local Photo Store
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * This class keeps photos as plain files under a root directory of the
+ * local file system, one file per key.
+ *
+ * Copies go through FileChannel.transferTo, which lets the
+ * kernel move the bytes between files (sendfile/copy_file_range) without
+ * copying them through the Java heap. A put writes a temporary file next
+ * to the target and renames it into place, so concurrent readers see
+ * either the old photo or the new one.
+ *
+ */
+
+public class LocalPhotoStore implements PhotoStore{
+	private final Path _root;
+
+	/**
+	 * @param root directory that key "/" maps to; created if missing
+	 * @throws java.io.IOException when the root cannot be created
+	 */
+	public LocalPhotoStore(Path root) throws IOException {
+		this._root = Files.createDirectories(root.toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Maps a key to a file under the root, refusing keys that would
+	 * escape it.
+	 * 
+	 * @param key the key of a photo or directory
+	 * @return the local path
+	 */
+	Path resolve(String key){
+		Path path = this._root.resolve(key.replaceFirst("^/+", "")).normalize();
+		if (!path.startsWith(this._root))
+			throw new IllegalArgumentException("Invalid photo key: " + key);
+		return path;
+	}
+
+	@Override
+	public void mkdir(String directory) throws IOException {
+		Files.createDirectories(resolve(directory));
+	}
+
+	@Override
+	public long put(Path source, String key) throws IOException {
+		Path target = resolve(key);
+		Files.createDirectories(target.getParent());
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+		try{
+			long copied;
+			try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)){
+				copied = copy(in, out);
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return copied;
+		}finally{
+			Files.deleteIfExists(temp);
+		}
+	}//end put
+
+	@Override
+	public long get(String key, Path target) throws IOException {
+		Path source = resolve(key);
+		if (!Files.isRegularFile(source))
+			throw new NoSuchFileException(key);
+		Path parent = target.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			return copy(in, out);
+		}
+	}//end get
+
+	@Override
+	public long read(String key, long offset, long length, WritableByteChannel out) throws IOException {
+		Path source = resolve(key);
+		if (!Files.isRegularFile(source))
+			throw new NoSuchFileException(key);
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)){
+			return copy(in, offset, Math.min(length, in.size() - offset), out);
+		}
+	}
+
+	@Override
+	public Stat stat(String key) throws IOException {
+		Path path = resolve(key);
+		if (!Files.exists(path)) return null;
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		return new Stat(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+	}
+
+	@Override
+	public boolean delete(String key) throws IOException {
+		return Files.deleteIfExists(resolve(key));
+	}
+
+	@Override
+	public void close(){
+		// nothing is held open between calls.
+	}
+
+	/**
+	 * Copies all of in to out. transferTo may move fewer bytes than asked
+	 * (at most 2GB per call on some platforms), so it is called until the
+	 * whole file has been copied.
+	 */
+	static long copy(FileChannel in, FileChannel out) throws IOException {
+		return copy(in, 0, in.size(), out);
+	}//end copy
+
+	/**
+	 * Copies length bytes of in starting at offset to out.
+	 */
+	static long copy(FileChannel in, long offset, long length, WritableByteChannel out) throws IOException {
+		long copied = 0;
+		while (copied < length){
+			long n = in.transferTo(offset + copied, length - copied, out);
+			if (n <= 0) break;
+			copied += n;
+		}
+		return copied;
+	}
+
+	@Override
+	public String getStatistics(){
+		return "Photos: " + this;
+	}
+
+	@Override
+	public String toString(){
+		return "local:" + this._root;
+	}
+}//end LocalPhotoStore
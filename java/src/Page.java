@@ -0,0 +1,69 @@
+/*
+ * Page
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * One page of a post listing plus the continuation token of the next page.
+ *
+ */
+
+public class Page{
+	/**
+	 * Produces the page that follows a continuation token.
+	 */
+	@FunctionalInterface
+	public interface Source {
+		/**
+		 * @param token the continuation token, or null for the first page
+		 * @return the page
+		 * @throws java.sql.SQLException when the page cannot be read
+		 */
+		Page fetch(String token) throws SQLException;
+	}
+
+	public final List<FeedItem> items;
+	public final String nextToken;
+
+	private Page(List<FeedItem> items, String nextToken){
+		this.items = items;
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * Builds a page from a query that fetched one row more than pageSize;
+	 * the extra row only tells us that another page exists.
+	 *
+	 * @param fetched up to pageSize + 1 items in listing order
+	 * @param pageSize number of items per page
+	 * @return the page
+	 */
+	public static Page of(List<FeedItem> fetched, int pageSize){
+		if (fetched.size() <= pageSize) return new Page(fetched, null);
+		List<FeedItem> items = fetched.subList(0, pageSize);
+		return new Page(items, PageToken.after(items.get(pageSize - 1)).encode());
+	}
+
+	/**
+	 * @param items the items of this page, e.g. pointing at thumbnails
+	 * @return a page with other items and the same continuation token
+	 */
+	public Page withItems(List<FeedItem> items){
+		return new Page(items, this.nextToken);
+	}
+
+	public boolean hasMore(){
+		return this.nextToken != null;
+	}
+}//end Page
@@ -0,0 +1,100 @@
+/*
+ * Page Token
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.Base64;
+
+/**
+ * The position of the last item of a page, used to continue a listing
+ * with a keyset predicate instead of OFFSET. Every post listing is ordered
+ * by (date_posted, post_id) descending, so the next page is "rows whose
+ * key is smaller than this one" and costs the same however deep the
+ * reader has scrolled. Both columns are immutable; a key containing likes
+ * would let liked posts move across the cursor and skip or repeat between
+ * pages. Callers only ever see the encoded form.
+ *
+ */
+
+public class PageToken{
+	/**
+	 * Ordering shared by every paged post listing.
+	 */
+	public static final String ORDER_BY = "date_posted DESC, post_id DESC";
+
+	/**
+	 * Predicate selecting rows after a token; bind keyParams() to it.
+	 */
+	public static final String KEYSET = "(date_posted, post_id) < (?, ?)";
+
+	private static final String VERSION = "k2";
+
+	public final LocalDate datePosted;
+	public final int postId;
+
+	private PageToken(LocalDate datePosted, int postId){
+		this.datePosted = datePosted;
+		this.postId = postId;
+	}
+
+	/**
+	 * @param item the last item of a page
+	 * @return a token that continues after item
+	 */
+	public static PageToken after(FeedItem item){
+		return new PageToken(item.datePosted, item.postId);
+	}
+
+	/**
+	 * @param token an encoded token, or null for the first page
+	 * @return the decoded token, or null for the first page
+	 * @throws IllegalArgumentException when the token was not produced by encode()
+	 */
+	public static PageToken decode(String token){
+		if (token == null || token.isEmpty()) return null;
+		try{
+			String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			String[] parts = raw.split(":");
+			if (parts.length != 3 || !VERSION.equals(parts[0])) throw new IllegalArgumentException(raw);
+			return new PageToken(LocalDate.ofEpochDay(Long.parseLong(parts[1])), Integer.parseInt(parts[2]));
+		}catch (IllegalArgumentException e){
+			throw new IllegalArgumentException("Invalid continuation token: " + token);
+		}
+	}//end decode
+
+	/**
+	 * @return the opaque string form handed to callers
+	 */
+	public String encode(){
+		String raw = VERSION + ":" + this.datePosted.toEpochDay() + ":" + this.postId;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the values to bind to the placeholders of KEYSET
+	 */
+	public Object[] keyParams(){
+		return new Object[]{ Date.valueOf(this.datePosted), this.postId };
+	}
+
+	/**
+	 * @param item a post
+	 * @return whether item comes after this position in listing order
+	 */
+	public boolean precedes(FeedItem item){
+		int c = item.datePosted.compareTo(this.datePosted);
+		if (c != 0) return c < 0;
+		return item.postId < this.postId;
+	}
+}//end PageToken
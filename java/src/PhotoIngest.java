@@ -0,0 +1,265 @@
+/*
+ * Photo Ingest
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class ingests a tree of photos laid out as
+ * &lt;root&gt;/&lt;username&gt;/&lt;file&gt;.jpg, creating one Post per photo.
+ *
+ * A bounded pool of workers reserves a post_id and copies each file into
+ * the photo store. The calling thread collects finished uploads and
+ * inserts their Post rows in batches, one transaction per batch.
+ *
+ * Progress is kept in a journal file in the root directory. Before a batch
+ * is committed, a "post_id TAB path" line per row is appended and forced to
+ * disk. On the next run the journal is read back and a file counts as done
+ * when its post_id exists in Post. So a crash at any point re-uploads only
+ * the files whose rows were never committed, and never inserts a photo
+ * twice. Files of unknown users are skipped.
+ *
+ */
+
+public class PhotoIngest{
+	static final String JOURNAL = ".ingest-journal";
+	private static final String INSERT =
+		"INSERT INTO Post (post_id, username_id, likes, date_posted, num_comments, tags, photo_url) VALUES (?, ?, 0, ?, 0, ?, ?)";
+
+	private final DBproject _db;
+	private final Path _root;
+	private final List<String> _tags;
+	private final int _threads;
+	private final int _batchSize;
+
+	//progress, only touched by the collecting thread
+	private long _files = 0;
+	private long _bytes = 0;
+	private long _start;
+
+	/**
+	 * One uploaded photo whose Post row is not committed yet.
+	 */
+	private static class Upload{
+		final String path;
+		final String username;
+		final int postId;
+		final String key;
+		final LocalDate date;
+		final long bytes;
+
+		Upload(String path, String username, int postId, String key, LocalDate date, long bytes){
+			this.path = path;
+			this.username = username;
+			this.postId = postId;
+			this.key = key;
+			this.date = date;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * @param db the database to create posts in
+	 * @param root directory holding one subdirectory per user
+	 * @param tags normalized tags given to every created post
+	 * @param threads number of concurrent uploads
+	 * @param batchSize number of Post rows per transaction
+	 */
+	public PhotoIngest(DBproject db, Path root, List<String> tags, int threads, int batchSize){
+		this._db = db;
+		this._root = root.toAbsolutePath().normalize();
+		this._tags = tags;
+		this._threads = threads;
+		this._batchSize = batchSize;
+	}
+
+	/**
+	 * Method to ingest every photo of the tree not ingested by an earlier run.
+	 * 
+	 * @return number of photos ingested by this run
+	 * @throws java.io.IOException when the tree or the journal cannot be read
+	 * @throws java.sql.SQLException when the posts cannot be written
+	 */
+	public long run() throws IOException, SQLException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(this._root)){
+			files = walk.filter(Files::isRegularFile)
+				.filter(p -> isPhoto(p) && p.getParent().getParent() != null && p.getParent().getParent().equals(this._root))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+		Set<String> done = finished();
+		Set<String> users = new HashSet<String>(this._db.executeQueryAndMap(
+			"SELECT username FROM DBUsers WHERE username = ANY(?)", rs -> rs.getString(1),
+			(Object) files.stream().map(PhotoIngest::username).distinct().toArray(String[]::new)));
+
+		List<Path> pending = new ArrayList<Path>();
+		Set<String> unknown = new HashSet<String>();
+		for (Path file : files){
+			if (done.contains(relative(file))) continue;
+			if (users.contains(username(file))) pending.add(file);
+			else unknown.add(username(file));
+		}
+		System.out.println(String.format("%d photos found, %d already ingested, %d to ingest",
+			files.size(), done.size(), pending.size()));
+		if (!unknown.isEmpty())
+			System.out.println("Skipping directories of unknown users: " + unknown);
+
+		this._start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+		try (FileChannel journal = FileChannel.open(this._root.resolve(JOURNAL),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+			CompletionService<Upload> uploads = new ExecutorCompletionService<Upload>(workers);
+			for (Path file : pending)
+				uploads.submit(() -> upload(file));
+
+			List<Upload> batch = new ArrayList<Upload>();
+			for (int i = 0; i < pending.size(); ++i){
+				batch.add(uploads.take().get());
+				if (batch.size() >= this._batchSize || i == pending.size() - 1){
+					commit(batch, journal);
+					batch.clear();
+				}
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Photo ingest interrupted", e);
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			throw new IOException(cause);
+		}finally{
+			workers.shutdownNow();
+		}
+		return this._files;
+	}//end run
+
+	private Upload upload(Path file) throws IOException, SQLException {
+		String username = username(file);
+		int postId = this._db.getPostIds().next();
+		String key = PhotoStore.photoKey(username, postId);
+		LocalDate date = LocalDate.from(Instant.ofEpochMilli(Files.getLastModifiedTime(file).toMillis()).atZone(ZoneId.systemDefault()));
+		long bytes = this._db.getPhotoStore().put(file, key);
+		this._db.getThumbnails().onUpload(key);
+		return new Upload(relative(file), username, postId, key, date, bytes);
+	}
+
+	/**
+	 * Journals a batch, inserts its rows in one transaction and reports
+	 * progress.
+	 */
+	private void commit(List<Upload> batch, FileChannel journal) throws IOException, SQLException {
+		StringBuilder lines = new StringBuilder();
+		for (Upload u : batch){
+			lines.append(u.postId).append('\t').append(u.path).append('\n');
+		}
+		Writer out = Channels.newWriter(journal, StandardCharsets.UTF_8.newEncoder(), -1);
+		out.write(lines.toString());
+		out.flush();
+		journal.force(false);
+
+		for (Upload u : batch)
+			this._db.getPartitions().ensure(u.date);
+		String tags = String.join(" ", this._tags);
+		this._db.inTransaction(tx -> {
+			for (Upload u : batch){
+				//queued first, so PostId rows are sent before the rows referencing them
+				tx.addBatch(PostPartitions.REGISTER_POST, u.postId);
+				tx.addBatch(INSERT, u.postId, u.username, java.sql.Date.valueOf(u.date), tags, u.key);
+				for (String tag : this._tags)
+					tx.addBatch("INSERT INTO PostTag (post_id, tag) VALUES (?, ?)", u.postId, tag);
+			}
+			return tx.executeBatch();
+		});
+
+		for (Upload u : batch){
+			this._db.getTimelineStore().onPost(new FeedItem(u.postId, u.username, 0, u.date, u.key));
+			this._db.getProfileCounters().onPost(u.username);
+			this._db.getTagIndex().onPost(u.postId, this._tags);
+			this._files++;
+			this._bytes += u.bytes;
+		}
+		double seconds = Math.max((System.nanoTime() - this._start) / 1e9, 1e-9);
+		System.out.println(String.format("  %d photos  %.1f MB  %.2f s  (%.1f MB/s, %.1f files/s)",
+			this._files, this._bytes / 1048576.0, seconds, this._bytes / 1048576.0 / seconds, this._files / seconds));
+	}//end commit
+
+	/**
+	 * Reads the journal of earlier runs.
+	 * 
+	 * @return relative paths of the photos whose Post rows were committed
+	 */
+	private Set<String> finished() throws IOException, SQLException {
+		Path journal = this._root.resolve(JOURNAL);
+		Map<Integer, String> journaled = new HashMap<Integer, String>();
+		if (Files.exists(journal)){
+			try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)){
+				String line;
+				while ((line = reader.readLine()) != null){
+					int tab = line.indexOf('\t');
+					//a torn last line from a crash is simply ignored
+					if (tab <= 0) continue;
+					try{
+						journaled.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+					}catch (NumberFormatException e){
+						// ignored.
+					}
+				}
+			}
+		}
+		Set<String> done = new HashSet<String>();
+		if (journaled.isEmpty()) return done;
+		int[] ids = journaled.keySet().stream().mapToInt(Integer::intValue).toArray();
+		for (int id : this._db.executeQueryAndMap("SELECT post_id FROM Post WHERE post_id = ANY(?)", rs -> rs.getInt(1), (Object) ids))
+			done.add(journaled.get(id));
+		return done;
+	}//end finished
+
+	private String relative(Path file){
+		return this._root.relativize(file).toString().replace('\\', '/');
+	}
+
+	private static String username(Path file){
+		return file.getParent().getFileName().toString();
+	}
+
+	private static boolean isPhoto(Path file){
+		String name = file.getFileName().toString().toLowerCase();
+		return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") || name.endsWith(".gif");
+	}
+}//end PhotoIngest
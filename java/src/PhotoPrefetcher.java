@@ -0,0 +1,171 @@
+/*
+ * Photo Prefetcher
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class warms the photo cache with the photos of a listing right after
+ * it is shown, since the next thing a reader does is download some of them.
+ *
+ * The first count photos of each listed page are fetched on a small pool of
+ * daemon threads, which bounds the concurrency. An optional byte rate
+ * bounds the bandwidth. Each listing starts a new generation: prefetches
+ * of earlier listings that have not fetched yet are cancelled and return
+ * as soon as a worker reaches them, so paging quickly never builds up a
+ * backlog.
+ * Running fetches are not interrupted, since interrupting a thread in
+ * FileChannel I/O closes the channel.
+ *
+ * A download of a photo this class warmed counts as warm if the photo was
+ * still cached, which is what the statistics report. Warmed keys are
+ * forgotten when the cache evicts them, so tracking them never holds more
+ * keys than the cache does.
+ *
+ */
+
+public class PhotoPrefetcher{
+	private final CachingPhotoStore _cache;
+	private final int _count;
+	private final long _bytesPerSecond;
+	private final ExecutorService _workers;
+	private final AtomicLong _generation = new AtomicLong();
+	//keys warmed, still cached and not downloaded since
+	private final Set<String> _warmed = ConcurrentHashMap.newKeySet();
+	//earliest time the next prefetch may start under the byte rate, guarded by this
+	private long _nextStartNanos = 0;
+
+	//statistics
+	private final AtomicLong _fetched = new AtomicLong();
+	private final AtomicLong _bytes = new AtomicLong();
+	private final AtomicLong _cancelled = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final AtomicLong _downloads = new AtomicLong();
+	private final AtomicLong _warmDownloads = new AtomicLong();
+
+	/**
+	 * @param cache the cache photos are warmed into
+	 * @param count number of photos warmed per listed page
+	 * @param threads maximum number of concurrent prefetches
+	 * @param bytesPerSecond bandwidth budget of the prefetches, 0 for none
+	 */
+	public PhotoPrefetcher(CachingPhotoStore cache, int count, int threads, long bytesPerSecond){
+		this._cache = cache;
+		this._count = count;
+		this._bytesPerSecond = bytesPerSecond;
+		cache.setEvictionListener(this._warmed::remove);
+		this._workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "photo-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Method to warm the photos of a page that was just listed, cancelling
+	 * the prefetches of the previous listing.
+	 * 
+	 * @param items the listed posts, in display order
+	 */
+	public void onListing(List<FeedItem> items){
+		//queued prefetches of older listings see the new generation and return at once
+		long generation = this._generation.incrementAndGet();
+		for (int i = 0; i < items.size() && i < this._count; ++i){
+			String key = PhotoStore.photoKey(items.get(i).author, items.get(i).postId);
+			this._workers.execute(() -> prefetch(key, generation));
+		}
+	}//end onListing
+
+	private void prefetch(String key, long generation){
+		if (generation != this._generation.get()){
+			this._cancelled.incrementAndGet();
+			return;
+		}
+		try{
+			PhotoStore.Stat stat = this._cache.stat(key);
+			if (stat == null) return;
+			throttle(stat.size);
+			//the wait may have outlived the listing
+			if (generation != this._generation.get()){
+				this._cancelled.incrementAndGet();
+				return;
+			}
+			//tracked before the photo is cached, so an eviction right after cannot be missed
+			boolean tracked = this._warmed.add(key);
+			boolean warmed = false;
+			try{
+				warmed = this._cache.warm(key);
+			}finally{
+				if (tracked && !warmed) this._warmed.remove(key);
+			}
+			if (warmed){
+				this._fetched.incrementAndGet();
+				this._bytes.addAndGet(stat.size);
+			}
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch (Exception e){
+			this._failed.incrementAndGet();
+		}
+	}//end prefetch
+
+	/**
+	 * Waits until the byte rate allows another bytes to be fetched.
+	 */
+	private void throttle(long bytes) throws InterruptedException {
+		if (this._bytesPerSecond <= 0) return;
+		long wait;
+		synchronized (this){
+			long now = System.nanoTime();
+			long start = Math.max(now, this._nextStartNanos);
+			this._nextStartNanos = start + (long) (bytes * 1e9 / this._bytesPerSecond);
+			wait = start - now;
+		}
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}//end throttle
+
+	/**
+	 * Method to record a download, before it reads the photo.
+	 * 
+	 * @param key the photo about to be downloaded
+	 */
+	public void onDownload(String key){
+		this._downloads.incrementAndGet();
+		if (this._warmed.remove(key) && this._cache.contains(key))
+			this._warmDownloads.incrementAndGet();
+	}
+
+	/**
+	 * Stops the prefetch threads, dropping queued prefetches.
+	 */
+	public void close(){
+		this._generation.incrementAndGet();
+		this._workers.shutdown();
+	}
+
+	/**
+	 * @return a one-line summary of prefetching since startup
+	 */
+	public String getStatistics(){
+		long downloads = this._downloads.get();
+		return String.format("Prefetch: fetched=%d (%.1f MB) cancelled=%d failed=%d downloads=%d served warm=%d (%.1f%%)",
+			this._fetched.get(), this._bytes.get() / 1048576.0, this._cancelled.get(), this._failed.get(),
+			downloads, this._warmDownloads.get(), downloads == 0 ? 0.0 : 100.0 * this._warmDownloads.get() / downloads);
+	}
+}//end PhotoPrefetcher
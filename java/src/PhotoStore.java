@@ -0,0 +1,169 @@
+/*
+ * Photo Store
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage for the photo files behind Post.photo_url. Photos are addressed
+ * by keys of the form /instagram/&lt;username&gt;/&lt;username&gt;-&lt;post_id&gt;.jpg,
+ * the layout the hadoop CLI commands used, so a store backed by an HDFS
+ * client can implement this interface without moving existing files.
+ *
+ * Implementations run in-process and must be safe to call from several
+ * threads at once.
+ *
+ */
+
+public interface PhotoStore extends AutoCloseable{
+	/**
+	 * Size and modification time of a stored photo.
+	 */
+	public static class Stat{
+		public final String key;
+		public final long size;
+		public final long modifiedMillis;
+
+		public Stat(String key, long size, long modifiedMillis){
+			this.key = key;
+			this.size = size;
+			this.modifiedMillis = modifiedMillis;
+		}
+
+		@Override
+		public String toString(){
+			return this.key + "\t" + this.size + " bytes";
+		}
+	}
+
+	/**
+	 * @param username owner of the photo
+	 * @return the directory holding the photos of a user
+	 */
+	public static String userDirectory(String username){
+		return "/instagram/" + username;
+	}
+
+	/**
+	 * @param username owner of the photo
+	 * @param postId the post the photo belongs to
+	 * @return the key of the photo of a post
+	 */
+	public static String photoKey(String username, Object postId){
+		return userDirectory(username) + "/" + username + "-" + postId + ".jpg";
+	}
+
+	/**
+	 * Creates a directory and any missing parents. Does nothing if it
+	 * already exists.
+	 * 
+	 * @param directory key of the directory
+	 * @throws java.io.IOException when the directory cannot be created
+	 */
+	void mkdir(String directory) throws IOException;
+
+	/**
+	 * Stores a local file under a key, replacing any previous photo. A
+	 * reader never sees a partially written photo.
+	 * 
+	 * @param source the local file to store
+	 * @param key where to store it
+	 * @return number of bytes stored
+	 * @throws java.io.IOException when the file cannot be read or stored
+	 */
+	long put(Path source, String key) throws IOException;
+
+	/**
+	 * Copies a stored photo to a local file, replacing the file if it exists.
+	 * 
+	 * @param key the photo to read
+	 * @param target the local file to write
+	 * @return number of bytes copied
+	 * @throws java.nio.file.NoSuchFileException when no photo has that key
+	 * @throws java.io.IOException when the photo cannot be copied
+	 */
+	long get(String key, Path target) throws IOException;
+
+	/**
+	 * Copies a byte range of a stored photo to a channel, without staging
+	 * the rest of the photo.
+	 * 
+	 * @param key the photo to read
+	 * @param offset first byte to copy
+	 * @param length maximum number of bytes to copy
+	 * @param out where the bytes are written
+	 * @return number of bytes copied; less than length at the end of the photo
+	 * @throws java.nio.file.NoSuchFileException when no photo has that key
+	 * @throws java.io.IOException when the photo cannot be read
+	 */
+	long read(String key, long offset, long length, WritableByteChannel out) throws IOException;
+
+	/**
+	 * @param key the photo to look up
+	 * @return its size and modification time, or null if there is none
+	 * @throws java.io.IOException when the store cannot be read
+	 */
+	Stat stat(String key) throws IOException;
+
+	/**
+	 * Looks up many photos at once, e.g. every photo of a listed page.
+	 * Stores that keep metadata remotely override this with one lookup.
+	 * 
+	 * @param keys the photos to look up
+	 * @return the Stat of every key that exists, by key
+	 * @throws java.io.IOException when the store cannot be read
+	 */
+	default Map<String, Stat> statAll(Collection<String> keys) throws IOException {
+		Map<String, Stat> stats = new HashMap<String, Stat>();
+		for (String key : keys){
+			Stat stat = stat(key);
+			if (stat != null) stats.put(key, stat);
+		}
+		return stats;
+	}//end statAll
+
+	/**
+	 * @param key the photo to remove
+	 * @return true if a photo was removed
+	 * @throws java.io.IOException when the photo cannot be removed
+	 */
+	boolean delete(String key) throws IOException;
+
+	/**
+	 * Reclaims the space of deleted photos, for stores that do not free it
+	 * on delete.
+	 * 
+	 * @return number of bytes reclaimed
+	 * @throws java.io.IOException when the store cannot be rewritten
+	 */
+	default long compact() throws IOException {
+		return 0;
+	}
+
+	/**
+	 * @return a one-line summary of the store and its activity
+	 */
+	String getStatistics();
+
+	/**
+	 * Releases the resources of the store.
+	 * 
+	 * @throws java.io.IOException when the store cannot be closed cleanly
+	 */
+	@Override
+	void close() throws IOException;
+}//end PhotoStore
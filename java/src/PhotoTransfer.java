@@ -0,0 +1,228 @@
+/*
+ * Photo Transfer
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class copies a photo out of a photo store in fixed-size chunks, so
+ * a large original is never staged whole and an interrupted download
+ * resumes from the last confirmed chunk instead of from zero.
+ *
+ * The bytes go to &lt;target&gt;.part. After each chunk is forced to disk its
+ * CRC32 is appended to &lt;target&gt;.part.sums, whose first line records the
+ * size and modification time of the photo and the chunk size. A later
+ * download of the same photo to the same target re-checks the confirmed
+ * chunks against their sums and continues after the last good one; if the
+ * photo changed meanwhile it starts over. The finished file is renamed to
+ * the target and the sums are removed.
+ *
+ */
+
+public class PhotoTransfer{
+	/**
+	 * Told about each confirmed chunk.
+	 */
+	@FunctionalInterface
+	public interface Progress{
+		/**
+		 * @param done bytes confirmed so far, including resumed ones
+		 * @param total size of the photo
+		 */
+		void chunk(long done, long total);
+	}
+
+	/**
+	 * Outcome of a transfer.
+	 */
+	public static class Result{
+		public final long bytes;
+		public final long resumedBytes;
+		public final long nanos;
+
+		Result(long bytes, long resumedBytes, long nanos){
+			this.bytes = bytes;
+			this.resumedBytes = resumedBytes;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return megabytes per second actually moved by this transfer
+		 */
+		public double megabytesPerSecond(){
+			double seconds = Math.max(this.nanos / 1e9, 1e-9);
+			return (this.bytes - this.resumedBytes) / 1048576.0 / seconds;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%d bytes (%d resumed) in %.1f ms, %.1f MB/s",
+				this.bytes, this.resumedBytes, this.nanos / 1e6, megabytesPerSecond());
+		}
+	}
+
+	private final PhotoStore _store;
+	private final int _chunkBytes;
+
+	/**
+	 * @param store the store photos are read from
+	 * @param chunkBytes size of a chunk, the unit of checksums and resumption
+	 */
+	public PhotoTransfer(PhotoStore store, int chunkBytes){
+		this._store = store;
+		this._chunkBytes = chunkBytes;
+	}
+
+	/**
+	 * Method to download a photo, resuming an earlier interrupted download
+	 * to the same target.
+	 * 
+	 * @param key the photo to read
+	 * @param target the local file to write
+	 * @param progress told about each chunk, or null
+	 * @return sizes and timing of the transfer
+	 * @throws java.nio.file.NoSuchFileException when no photo has that key
+	 * @throws java.io.IOException when the photo cannot be copied
+	 */
+	public Result download(String key, Path target, Progress progress) throws IOException {
+		long start = System.nanoTime();
+		PhotoStore.Stat stat = this._store.stat(key);
+		if (stat == null)
+			throw new NoSuchFileException(key);
+		Path parent = target.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		Path part = Paths.get(target + ".part");
+		Path sums = Paths.get(target + ".part.sums");
+		String header = stat.size + "\t" + stat.modifiedMillis + "\t" + this._chunkBytes;
+
+		try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			List<Long> confirmed = confirmed(out, sums, header);
+			long done = (long) confirmed.size() * this._chunkBytes;
+			done = Math.min(done, stat.size);
+			long resumed = done;
+			out.truncate(done);
+			try (BufferedWriter journal = Files.newBufferedWriter(sums, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+				journal.write(header);
+				journal.newLine();
+				for (long crc : confirmed){
+					journal.write(Long.toString(crc));
+					journal.newLine();
+				}
+				journal.flush();
+
+				Checksummed chunk = new Checksummed(out);
+				while (done < stat.size){
+					long length = Math.min(this._chunkBytes, stat.size - done);
+					out.position(done);
+					chunk.crc.reset();
+					long n = this._store.read(key, done, length, chunk);
+					if (n != length)
+						throw new IOException("Photo " + key + " changed during the download");
+					out.force(false);
+					journal.write(Long.toString(chunk.crc.getValue()));
+					journal.newLine();
+					journal.flush();
+					done += n;
+					if (progress != null)
+						progress.chunk(done, stat.size);
+				}
+			}
+			Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(sums);
+			return new Result(done, resumed, System.nanoTime() - start);
+		}
+	}//end download
+
+	/**
+	 * Reads the sums of an earlier attempt and re-checks each confirmed
+	 * chunk of the partial file against them.
+	 * 
+	 * @return the sums of the leading chunks that are still intact
+	 */
+	private List<Long> confirmed(FileChannel part, Path sums, String header) throws IOException {
+		List<Long> good = new ArrayList<Long>();
+		if (!Files.exists(sums)) return good;
+		List<String> lines = Files.readAllLines(sums, StandardCharsets.UTF_8);
+		//a different photo or chunk size: start over
+		if (lines.isEmpty() || !lines.get(0).equals(header)) return good;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(this._chunkBytes);
+		CRC32 crc = new CRC32();
+		for (int i = 1; i < lines.size(); ++i){
+			long expected;
+			try{
+				expected = Long.parseLong(lines.get(i).trim());
+			}catch (NumberFormatException e){
+				break;
+			}
+			buffer.clear();
+			long position = (long) (i - 1) * this._chunkBytes;
+			while (buffer.hasRemaining()){
+				int n = part.read(buffer, position + buffer.position());
+				if (n < 0) break;
+			}
+			buffer.flip();
+			crc.reset();
+			crc.update(buffer);
+			if (crc.getValue() != expected) break;
+			good.add(expected);
+		}
+		return good;
+	}//end confirmed
+
+	/**
+	 * Writes through to a file channel at its position, keeping a CRC32 of
+	 * everything written.
+	 */
+	private static class Checksummed implements WritableByteChannel{
+		final FileChannel out;
+		final CRC32 crc = new CRC32();
+
+		Checksummed(FileChannel out){
+			this.out = out;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			ByteBuffer view = src.duplicate();
+			int n = this.out.write(src);
+			view.limit(view.position() + n);
+			this.crc.update(view);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen(){
+			return this.out.isOpen();
+		}
+
+		@Override
+		public void close(){
+			// the caller owns the file.
+		}
+	}
+}//end PhotoTransfer
@@ -0,0 +1,256 @@
+/*
+ * Post Partitions
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class manages the monthly partitions of Post, which is range
+ * partitioned on date_posted. A query bounded by date only reads the
+ * partitions of the months it covers, and a month of old posts is
+ * archived by detaching its partition instead of deleting its rows.
+ *
+ * Every partition is named post_yYYYYmMM and gets the indexes declared
+ * on Post. Rows whose month has no partition yet, e.g. those loaded by
+ * COPY, land in post_default. ensure() creates the partition of a date
+ * before it is inserted, and maintain() moves whatever collected in
+ * post_default into partitions of its own. A month whose partition was
+ * archived keeps its name as a detached table, so new posts of that month
+ * stay in post_default instead.
+ *
+ * Since every key of Post includes date_posted, post_id uniqueness and
+ * the references of PostTag and UserTagged live in the PostId table,
+ * which every insert into Post registers its post_id in. Archiving a
+ * month deletes the PostId rows of its posts, and with them their tags.
+ *
+ */
+
+public class PostPartitions{
+	public static final String DEFAULT_PARTITION = "post_default";
+	//run in the transaction that inserts the post, before it
+	public static final String REGISTER_POST = "INSERT INTO PostId (post_id) VALUES (?)";
+	//raised when a new partition would take rows that already sit in post_default
+	private static final String CHECK_VIOLATION = "23514";
+	private static final Pattern NAME = Pattern.compile("post_y(\\d{4})m(\\d{2})");
+	private static final DateTimeFormatter[] FORMATS = {
+		DateTimeFormatter.ofPattern("uuuu-M-d").withResolverStyle(ResolverStyle.STRICT),
+		DateTimeFormatter.ofPattern("M/d/uuuu").withResolverStyle(ResolverStyle.STRICT),
+		DateTimeFormatter.ofPattern("uuuu/M/d").withResolverStyle(ResolverStyle.STRICT)
+	};
+
+	private final DBproject _db;
+	//months with a partition attached to Post
+	private final Set<YearMonth> _months = ConcurrentHashMap.newKeySet();
+	//months whose partition was detached by an archive
+	private final Set<YearMonth> _archivedMonths = ConcurrentHashMap.newKeySet();
+
+	//statistics
+	private final AtomicLong _moved = new AtomicLong();
+	private final AtomicLong _deferred = new AtomicLong();
+	private final AtomicLong _rerouted = new AtomicLong();
+	private final AtomicLong _archived = new AtomicLong();
+
+	/**
+	 * @param db the database holding Post
+	 */
+	public PostPartitions(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Method to read a date the way operators type it.
+	 * 
+	 * @param text YYYY-MM-DD, MM/DD/YYYY or YYYY/MM/DD
+	 * @return the date
+	 * @throws IllegalArgumentException when the text is none of those
+	 */
+	public static LocalDate parseDate(String text){
+		String trimmed = text == null ? "" : text.trim();
+		for (DateTimeFormatter format : FORMATS){
+			try{
+				return LocalDate.parse(trimmed, format);
+			}catch (DateTimeParseException e){
+				// try the next format.
+			}
+		}
+		throw new IllegalArgumentException("Unrecognized date '" + trimmed + "', use YYYY-MM-DD or MM/DD/YYYY");
+	}//end parseDate
+
+	/**
+	 * @return the name of the partition holding the given month, e.g. post_y2020m10
+	 */
+	public static String partitionName(YearMonth month){
+		return String.format("post_y%04dm%02d", month.getYear(), month.getMonthValue());
+	}
+
+	/**
+	 * Creates the partition of a date's month unless one is attached. Cheap
+	 * after the first call for a month. A post of an archived month is left
+	 * to post_default, since the month's partition name is taken.
+	 * 
+	 * @param date the date_posted about to be inserted
+	 * @throws java.sql.SQLException when the partition cannot be created
+	 */
+	public void ensure(LocalDate date) throws SQLException {
+		YearMonth month = YearMonth.from(date);
+		if (this._months.contains(month)) return;
+		synchronized (this){
+			if (this._months.contains(month)) return;
+			if (!this._archivedMonths.contains(month)) refresh();
+			if (this._months.contains(month)) return;
+			if (this._archivedMonths.contains(month)){
+				this._rerouted.incrementAndGet();
+				return;
+			}
+			try{
+				this._db.executeUpdate(createStatement(month));
+			}catch (SQLException e){
+				if (!CHECK_VIOLATION.equals(e.getSQLState())) throw e;
+				//the post joins its month in post_default until maintain() moves them
+				this._deferred.incrementAndGet();
+				return;
+			}
+			this._months.add(month);
+		}
+	}//end ensure
+
+	/**
+	 * Moves the rows of post_default into monthly partitions, creating them
+	 * as needed. post_default is detached while its rows are moved, so the
+	 * new partitions can be created, and attached again holding only rows of
+	 * archived months. Run at startup and after bulk loads.
+	 * 
+	 * @return the number of posts moved
+	 * @throws java.sql.SQLException when the partitions cannot be changed
+	 */
+	public synchronized int maintain() throws SQLException {
+		refresh();
+		List<YearMonth> pending = new ArrayList<YearMonth>();
+		this._db.executeQueryForEach(
+			"SELECT DISTINCT CAST(date_trunc('month', date_posted) AS DATE) FROM " + DEFAULT_PARTITION,
+			rs -> {
+				YearMonth month = YearMonth.from(rs.getDate(1).toLocalDate());
+				if (!this._archivedMonths.contains(month)) pending.add(month);
+			});
+		if (pending.isEmpty()) return 0;
+
+		String[] months = new String[pending.size()];
+		for (int i = 0; i < months.length; ++i)
+			months[i] = pending.get(i).toString();
+		String movable = " WHERE to_char(date_posted, 'YYYY-MM') = ANY(?)";
+		int moved = this._db.inTransaction(tx -> {
+			tx.update("ALTER TABLE Post DETACH PARTITION " + DEFAULT_PARTITION);
+			for (YearMonth month : pending){
+				//a month deferred by ensure() already has its partition
+				if (!this._months.contains(month)) tx.update(createStatement(month));
+			}
+			int rows = tx.update("INSERT INTO Post SELECT * FROM " + DEFAULT_PARTITION + movable, (Object) months);
+			tx.update("DELETE FROM " + DEFAULT_PARTITION + movable, (Object) months);
+			tx.update("ALTER TABLE Post ATTACH PARTITION " + DEFAULT_PARTITION + " DEFAULT");
+			return rows;
+		});
+		this._months.addAll(pending);
+		this._moved.addAndGet(moved);
+		return moved;
+	}//end maintain
+
+	/**
+	 * Detaches the partitions of every month before the given date's month.
+	 * Their posts leave Post at once, together with their PostId rows and
+	 * the PostTag and UserTagged rows referencing those; each partition
+	 * stays behind as a plain table that can be dumped and dropped.
+	 * 
+	 * @param date the first month kept is the month of this date
+	 * @return the names of the detached tables, oldest first
+	 * @throws java.sql.SQLException when a partition cannot be detached
+	 */
+	public synchronized List<String> archiveBefore(LocalDate date) throws SQLException {
+		YearMonth cutoff = YearMonth.from(date);
+		List<String> detached = new ArrayList<String>();
+		for (Map.Entry<YearMonth, String> partition : listPartitions().entrySet()){
+			if (!partition.getKey().isBefore(cutoff)) break;
+			String name = partition.getValue();
+			this._db.inTransaction(tx -> {
+				tx.update("ALTER TABLE Post DETACH PARTITION " + name);
+				return tx.update("DELETE FROM PostId WHERE post_id IN (SELECT post_id FROM " + name + ")");
+			});
+			this._months.remove(partition.getKey());
+			this._archivedMonths.add(partition.getKey());
+			detached.add(partition.getValue());
+		}
+		this._archived.addAndGet(detached.size());
+		return detached;
+	}//end archiveBefore
+
+	public String getStatistics(){
+		return String.format("Post partitions: months=%d archivedMonths=%d moved=%d deferred=%d rerouted=%d archived=%d",
+			this._months.size(), this._archivedMonths.size(), this._moved.get(), this._deferred.get(),
+			this._rerouted.get(), this._archived.get());
+	}
+
+	/**
+	 * Reloads which months are attached and which are archived from the
+	 * catalog, rather than trusting that a table of the right name is a
+	 * partition.
+	 */
+	private void refresh() throws SQLException {
+		Map<YearMonth, String> attached = listPartitions();
+		Map<YearMonth, String> archived = monthlyTables(
+			"SELECT c.relname FROM pg_class c WHERE c.relkind = 'r' AND NOT c.relispartition" +
+			" AND c.relnamespace = CAST(current_schema() AS regnamespace)");
+		this._months.retainAll(attached.keySet());
+		this._months.addAll(attached.keySet());
+		this._archivedMonths.retainAll(archived.keySet());
+		this._archivedMonths.addAll(archived.keySet());
+	}//end refresh
+
+	/**
+	 * @return the monthly partitions attached to Post, by month
+	 */
+	private TreeMap<YearMonth, String> listPartitions() throws SQLException {
+		return monthlyTables(
+			"SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = CAST('post' AS regclass)");
+	}
+
+	/**
+	 * @param query a query returning table names
+	 * @return the names following the post_yYYYYmMM scheme, by month
+	 */
+	private TreeMap<YearMonth, String> monthlyTables(String query) throws SQLException {
+		TreeMap<YearMonth, String> tables = new TreeMap<YearMonth, String>();
+		this._db.executeQueryForEach(query, rs -> {
+			Matcher name = NAME.matcher(rs.getString(1));
+			if (name.matches())
+				tables.put(YearMonth.of(Integer.parseInt(name.group(1)), Integer.parseInt(name.group(2))), name.group());
+		});
+		return tables;
+	}//end monthlyTables
+
+	private static String createStatement(YearMonth month){
+		return "CREATE TABLE " + partitionName(month) + " PARTITION OF Post" +
+			" FOR VALUES FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')";
+	}
+}//end PostPartitions
@@ -0,0 +1,313 @@
+/*
+ * Posting Bitmap
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A compressed set of non-negative post IDs, in the style of a Roaring
+ * bitmap. IDs are split by their high 16 bits into chunks of 65536; a chunk
+ * holding at most 4096 IDs keeps them as a sorted char array, a denser one
+ * as a 65536-bit bitmap. A sparse tag therefore costs two bytes per post
+ * and a popular one an eighth of a byte, and AND, OR and NOT work chunk by
+ * chunk, only on the chunks present, so their cost follows the number of
+ * matching posts rather than the size of Post.
+ *
+ * Instances are not thread safe; results of and/or/andNot are new bitmaps.
+ *
+ */
+
+public class PostingBitmap{
+	private static final int ARRAY_MAX = 4096;
+	private static final int WORDS = 1024;
+
+	private final TreeMap<Integer, Container> _chunks = new TreeMap<Integer, Container>();
+
+	/**
+	 * The low 16 bits of the IDs of one chunk, as either representation.
+	 */
+	private static final class Container{
+		//sorted values while sparse, else null
+		char[] values;
+		int size;
+		//bits while dense, else null
+		long[] words;
+
+		static Container array(char[] values, int size){
+			Container c = new Container();
+			c.values = values;
+			c.size = size;
+			return c;
+		}
+
+		static Container bitmap(long[] words){
+			Container c = new Container();
+			c.words = words;
+			for (long w : words)
+				c.size += Long.bitCount(w);
+			return c;
+		}
+
+		boolean contains(char v){
+			if (this.words != null)
+				return (this.words[v >>> 6] & (1L << v)) != 0;
+			return Arrays.binarySearch(this.values, 0, this.size, v) >= 0;
+		}
+
+		void add(char v){
+			if (this.words != null){
+				long bit = 1L << v;
+				if ((this.words[v >>> 6] & bit) == 0){
+					this.words[v >>> 6] |= bit;
+					this.size++;
+				}
+				return;
+			}
+			int i = Arrays.binarySearch(this.values, 0, this.size, v);
+			if (i >= 0) return;
+			i = -i - 1;
+			if (this.size == ARRAY_MAX){
+				this.words = toWords();
+				this.values = null;
+				this.words[v >>> 6] |= 1L << v;
+				this.size++;
+				return;
+			}
+			if (this.size == this.values.length)
+				this.values = Arrays.copyOf(this.values, Math.min(ARRAY_MAX, this.values.length * 2));
+			System.arraycopy(this.values, i, this.values, i + 1, this.size - i);
+			this.values[i] = v;
+			this.size++;
+		}
+
+		long[] toWords(){
+			if (this.words != null) return this.words.clone();
+			long[] w = new long[WORDS];
+			for (int i = 0; i < this.size; ++i)
+				w[this.values[i] >>> 6] |= 1L << this.values[i];
+			return w;
+		}
+
+		/**
+		 * @return the values of this container that other does, or does
+		 * not (keep == false), contain, as a sparse container
+		 */
+		Container filter(Container other, boolean keep){
+			char[] out = new char[this.size];
+			int n = 0;
+			for (int i = 0; i < this.size; ++i){
+				if (other.contains(this.values[i]) == keep)
+					out[n++] = this.values[i];
+			}
+			return n == 0 ? null : array(out, n);
+		}
+
+		Container and(Container other){
+			if (this.words == null) return filter(other, true);
+			if (other.words == null) return other.filter(this, true);
+			long[] w = new long[WORDS];
+			for (int i = 0; i < WORDS; ++i)
+				w[i] = this.words[i] & other.words[i];
+			return normalize(w);
+		}
+
+		Container or(Container other){
+			if (this.words == null && other.words == null && this.size + other.size <= ARRAY_MAX){
+				char[] out = new char[this.size + other.size];
+				int i = 0, j = 0, n = 0;
+				while (i < this.size && j < other.size){
+					char a = this.values[i], b = other.values[j];
+					if (a == b){ out[n++] = a; i++; j++; }
+					else if (a < b) out[n++] = this.values[i++];
+					else out[n++] = other.values[j++];
+				}
+				while (i < this.size) out[n++] = this.values[i++];
+				while (j < other.size) out[n++] = other.values[j++];
+				return array(out, n);
+			}
+			long[] w = toWords();
+			if (other.words != null){
+				for (int i = 0; i < WORDS; ++i)
+					w[i] |= other.words[i];
+			}else{
+				for (int i = 0; i < other.size; ++i)
+					w[other.values[i] >>> 6] |= 1L << other.values[i];
+			}
+			return normalize(w);
+		}
+
+		Container andNot(Container other){
+			if (this.words == null) return filter(other, false);
+			long[] w = this.words.clone();
+			if (other.words != null){
+				for (int i = 0; i < WORDS; ++i)
+					w[i] &= ~other.words[i];
+			}else{
+				for (int i = 0; i < other.size; ++i)
+					w[other.values[i] >>> 6] &= ~(1L << other.values[i]);
+			}
+			return normalize(w);
+		}
+
+		/**
+		 * @return the words as the cheaper representation, or null if empty
+		 */
+		static Container normalize(long[] w){
+			Container c = bitmap(w);
+			if (c.size == 0) return null;
+			if (c.size > ARRAY_MAX) return c;
+			char[] out = new char[c.size];
+			int n = 0;
+			for (int i = 0; i < WORDS; ++i){
+				long word = w[i];
+				while (word != 0){
+					out[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return array(out, n);
+		}
+
+		Container copy(){
+			if (this.words != null){
+				return bitmap(this.words.clone());
+			}
+			return array(Arrays.copyOf(this.values, this.size), this.size);
+		}
+
+		int sizeInBytes(){
+			return this.words != null ? WORDS * 8 : this.values.length * 2;
+		}
+	}
+
+	/**
+	 * @param id a post ID, at least 0
+	 */
+	public void add(int id){
+		if (id < 0)
+			throw new IllegalArgumentException("Negative post id " + id);
+		Container c = this._chunks.get(id >>> 16);
+		if (c == null){
+			c = Container.array(new char[4], 0);
+			this._chunks.put(id >>> 16, c);
+		}
+		c.add((char) id);
+	}
+
+	public boolean contains(int id){
+		Container c = this._chunks.get(id >>> 16);
+		return c != null && c.contains((char) id);
+	}
+
+	/**
+	 * @return number of IDs in the set
+	 */
+	public int cardinality(){
+		int n = 0;
+		for (Container c : this._chunks.values())
+			n += c.size;
+		return n;
+	}
+
+	public boolean isEmpty(){
+		return this._chunks.isEmpty();
+	}
+
+	/**
+	 * @return the IDs in both sets
+	 */
+	public PostingBitmap and(PostingBitmap other){
+		PostingBitmap result = new PostingBitmap();
+		//walk the smaller key set, probing the larger
+		PostingBitmap small = this._chunks.size() <= other._chunks.size() ? this : other;
+		PostingBitmap large = small == this ? other : this;
+		for (Map.Entry<Integer, Container> e : small._chunks.entrySet()){
+			Container c = large._chunks.get(e.getKey());
+			if (c == null) continue;
+			Container r = e.getValue().and(c);
+			if (r != null) result._chunks.put(e.getKey(), r);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the IDs in either set
+	 */
+	public PostingBitmap or(PostingBitmap other){
+		PostingBitmap result = copy();
+		for (Map.Entry<Integer, Container> e : other._chunks.entrySet()){
+			Container mine = result._chunks.get(e.getKey());
+			result._chunks.put(e.getKey(), mine == null ? e.getValue().copy() : mine.or(e.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the IDs of this set that are not in other
+	 */
+	public PostingBitmap andNot(PostingBitmap other){
+		PostingBitmap result = new PostingBitmap();
+		for (Map.Entry<Integer, Container> e : this._chunks.entrySet()){
+			Container c = other._chunks.get(e.getKey());
+			Container r = c == null ? e.getValue().copy() : e.getValue().andNot(c);
+			if (r != null) result._chunks.put(e.getKey(), r);
+		}
+		return result;
+	}
+
+	/**
+	 * @return a copy sharing no state with this bitmap
+	 */
+	public PostingBitmap copy(){
+		PostingBitmap result = new PostingBitmap();
+		for (Map.Entry<Integer, Container> e : this._chunks.entrySet())
+			result._chunks.put(e.getKey(), e.getValue().copy());
+		return result;
+	}
+
+	/**
+	 * @return the IDs in ascending order
+	 */
+	public int[] toArray(){
+		int[] ids = new int[cardinality()];
+		int n = 0;
+		for (Map.Entry<Integer, Container> e : this._chunks.entrySet()){
+			int high = e.getKey() << 16;
+			Container c = e.getValue();
+			if (c.words == null){
+				for (int i = 0; i < c.size; ++i)
+					ids[n++] = high | c.values[i];
+			}else{
+				for (int i = 0; i < WORDS; ++i){
+					long word = c.words[i];
+					while (word != 0){
+						ids[n++] = high | ((i << 6) + Long.numberOfTrailingZeros(word));
+						word &= word - 1;
+					}
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @return approximate heap used by the containers
+	 */
+	public long sizeInBytes(){
+		long bytes = 0;
+		for (Container c : this._chunks.values())
+			bytes += c.sizeInBytes() + 48;
+		return bytes;
+	}
+}//end PostingBitmap
@@ -0,0 +1,276 @@
+/*
+ * Profile Counters
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class keeps UserProfile.num_posts, followers and followings in
+ * step with Post and UserFollowing without a per-event UPDATE.
+ *
+ * Operations record deltas here. Deltas are coalesced per user in memory
+ * and written by a background flusher with one UPDATE ... FROM unnest(...)
+ * per interval, in its own transaction. An update finds its user's Delta
+ * with a plain lookup and adds to it without locking; idle Deltas are
+ * dropped under a StampedLock whose stamp the update validates afterwards,
+ * the same scheme LikeCounter uses. A second, slower task recomputes
+ * the counters from the base tables and fixes any drift, e.g. from rows
+ * loaded outside the application or from a crash before a flush.
+ *
+ */
+
+public class ProfileCounters{
+	private static final String FLUSH =
+		"UPDATE UserProfile u SET num_posts = u.num_posts + d.posts," +
+		" followers = u.followers + d.followers, followings = u.followings + d.followings" +
+		" FROM unnest(?, ?, ?, ?) AS d(username, posts, followers, followings)" +
+		" WHERE u.username_id = d.username";
+
+	private static final String RECONCILE =
+		"UPDATE UserProfile u SET num_posts = c.posts, followers = c.followers, followings = c.followings" +
+		" FROM (SELECT d.username, COALESCE(p.n, 0) AS posts, COALESCE(fr.n, 0) AS followers, COALESCE(fg.n, 0) AS followings" +
+		" FROM DBUsers d" +
+		" LEFT JOIN (SELECT username_id, COUNT(*) AS n FROM Post GROUP BY username_id) p ON p.username_id = d.username" +
+		" LEFT JOIN (SELECT follower, COUNT(*) AS n FROM UserFollowing GROUP BY follower) fr ON fr.follower = d.username" +
+		" LEFT JOIN (SELECT username_id, COUNT(*) AS n FROM UserFollowing GROUP BY username_id) fg ON fg.username_id = d.username) c" +
+		" WHERE u.username_id = c.username" +
+		" AND (u.num_posts, u.followers, u.followings) IS DISTINCT FROM (c.posts, c.followers, c.followings)";
+
+	private final DBproject _db;
+	private final long _flushMillis;
+	private final long _reconcileMillis;
+	private final ConcurrentHashMap<String, Delta> _pending = new ConcurrentHashMap<String, Delta>();
+	//write-locked while idle deltas are removed from _pending
+	private final StampedLock _removal = new StampedLock();
+	private ScheduledExecutorService _scheduler = null;
+
+	//statistics
+	private final LongAdder _events = new LongAdder();
+	private final AtomicLong _flushes = new AtomicLong();
+	private final AtomicLong _rowsFlushed = new AtomicLong();
+	private final AtomicLong _reconciles = new AtomicLong();
+	private final AtomicLong _rowsReconciled = new AtomicLong();
+
+	/**
+	 * Pending changes to one user's counters.
+	 */
+	public static class Delta {
+		final LongAdder posts = new LongAdder();
+		final LongAdder followers = new LongAdder();
+		final LongAdder followings = new LongAdder();
+
+		void add(long posts, long followers, long followings){
+			this.posts.add(posts);
+			this.followers.add(followers);
+			this.followings.add(followings);
+		}
+
+		boolean isZero(){
+			return this.posts.sum() == 0 && this.followers.sum() == 0 && this.followings.sum() == 0;
+		}
+	}
+
+	/**
+	 * @param db the database the counters are written to
+	 * @param flushMillis interval between batched writes
+	 * @param reconcileMillis interval between recomputations from the base tables
+	 */
+	public ProfileCounters(DBproject db, long flushMillis, long reconcileMillis){
+		this._db = db;
+		this._flushMillis = flushMillis;
+		this._reconcileMillis = reconcileMillis;
+	}
+
+	/**
+	 * Starts the background flusher and reconciler.
+	 */
+	public synchronized void start(){
+		if (this._scheduler != null) return;
+		this._scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "profile-counters");
+			t.setDaemon(true);
+			return t;
+		});
+		this._scheduler.scheduleWithFixedDelay(() -> {
+			try{
+				flush();
+			}catch (SQLException e){
+				System.err.println("Unable to flush profile counters: " + e.getMessage());
+			}
+		}, this._flushMillis, this._flushMillis, TimeUnit.MILLISECONDS);
+		this._scheduler.scheduleWithFixedDelay(() -> {
+			try{
+				reconcile();
+			}catch (SQLException e){
+				System.err.println("Unable to reconcile profile counters: " + e.getMessage());
+			}
+		}, this._reconcileMillis, this._reconcileMillis, TimeUnit.MILLISECONDS);
+	}//end start
+
+	public void onPost(String author){
+		update(author, 1, 0, 0);
+	}
+
+	public void onPostDeleted(String author){
+		update(author, -1, 0, 0);
+	}
+
+	public void onFollow(String user, String followee){
+		update(followee, 0, 1, 0);
+		update(user, 0, 0, 1);
+	}
+
+	public void onUnfollow(String user, String followee){
+		update(followee, 0, -1, 0);
+		update(user, 0, 0, -1);
+	}
+
+	/**
+	 * @param user a username
+	 * @return {posts, followers, followings} changes not yet written to UserProfile
+	 */
+	public long[] pending(String user){
+		Delta d = this._pending.get(user);
+		if (d == null) return new long[3];
+		return new long[]{ d.posts.sum(), d.followers.sum(), d.followings.sum() };
+	}
+
+	/**
+	 * Writes all pending deltas in one statement.
+	 *
+	 * @return the number of profiles updated
+	 * @throws java.sql.SQLException when the update fails; the deltas stay pending
+	 */
+	public synchronized int flush() throws SQLException {
+		List<String> users = new ArrayList<String>();
+		List<long[]> deltas = new ArrayList<long[]>();
+		List<String> idle = new ArrayList<String>();
+		for (Map.Entry<String, Delta> e : this._pending.entrySet()){
+			Delta d = e.getValue();
+			if (d.isZero()){
+				idle.add(e.getKey());
+				continue;
+			}
+			//take exactly what we saw; concurrent updates stay for the next flush
+			long[] taken = { d.posts.sum(), d.followers.sum(), d.followings.sum() };
+			d.posts.add(-taken[0]);
+			d.followers.add(-taken[1]);
+			d.followings.add(-taken[2]);
+			users.add(e.getKey());
+			deltas.add(taken);
+		}
+		removeIdle(idle);
+		if (users.isEmpty()) return 0;
+
+		int n = users.size();
+		int[] posts = new int[n], followers = new int[n], followings = new int[n];
+		for (int i = 0; i < n; ++i){
+			posts[i] = (int) deltas.get(i)[0];
+			followers[i] = (int) deltas.get(i)[1];
+			followings[i] = (int) deltas.get(i)[2];
+		}
+		int updated;
+		try{
+			updated = this._db.executePreparedUpdate(FLUSH, users.toArray(new String[0]), posts, followers, followings);
+		}catch (SQLException e){
+			for (int i = 0; i < n; ++i) add(users.get(i), posts[i], followers[i], followings[i]);
+			throw e;
+		}
+		this._flushes.incrementAndGet();
+		this._rowsFlushed.addAndGet(updated);
+		return updated;
+	}//end flush
+
+	/**
+	 * Flushes pending deltas, then recomputes every counter from Post and
+	 * UserFollowing, rewriting only the profiles that differ.
+	 *
+	 * @return the number of profiles corrected
+	 * @throws java.sql.SQLException when the counters cannot be recomputed
+	 */
+	public synchronized int reconcile() throws SQLException {
+		flush();
+		int corrected = this._db.executePreparedUpdate(RECONCILE);
+		this._reconciles.incrementAndGet();
+		this._rowsReconciled.addAndGet(corrected);
+		return corrected;
+	}//end reconcile
+
+	/**
+	 * Flushes outstanding deltas and stops the background tasks.
+	 */
+	public void close(){
+		synchronized (this){
+			if (this._scheduler != null) this._scheduler.shutdownNow();
+			this._scheduler = null;
+		}
+		try{
+			flush();
+		}catch (SQLException e){
+			System.err.println("Unable to flush profile counters: " + e.getMessage());
+		}
+	}//end close
+
+	public String getStatistics(){
+		return String.format("Profile counters: events=%d pending users=%d flushes=%d rowsFlushed=%d reconciles=%d rowsCorrected=%d",
+			this._events.sum(), this._pending.size(), this._flushes.get(), this._rowsFlushed.get(),
+			this._reconciles.get(), this._rowsReconciled.get());
+	}
+
+	private void update(String user, long posts, long followers, long followings){
+		this._events.increment();
+		add(user, posts, followers, followings);
+	}
+
+	private void add(String user, long posts, long followers, long followings){
+		long stamp = this._removal.tryOptimisticRead();
+		Delta d = stamp == 0 ? null : this._pending.get(user);
+		if (d != null){
+			d.add(posts, followers, followings);
+			if (this._removal.validate(stamp)) return;
+		}
+		stamp = this._removal.readLock();
+		try{
+			//a removal that ran meanwhile either saw the update and kept the delta, or dropped it unseen
+			if (d != null && this._pending.get(user) == d) return;
+			this._pending.computeIfAbsent(user, k -> new Delta()).add(posts, followers, followings);
+		}finally{
+			this._removal.unlockRead(stamp);
+		}
+	}//end add
+
+	/**
+	 * Drops the deltas of users with no change since the last flush.
+	 */
+	private void removeIdle(List<String> idle){
+		if (idle.isEmpty()) return;
+		long stamp = this._removal.writeLock();
+		try{
+			for (String user : idle){
+				Delta d = this._pending.get(user);
+				if (d != null && d.isZero()) this._pending.remove(user, d);
+			}
+		}finally{
+			this._removal.unlockWrite(stamp);
+		}
+	}//end removeIdle
+}//end ProfileCounters
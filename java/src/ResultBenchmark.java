@@ -0,0 +1,95 @@
+/*
+ * Result API Benchmark
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Compares executePreparedQueryAndReturnResult against the row callback
+ * and columnar forms on the same query. For every form it prints the mean
+ * time per run and, where the JVM supports it, the bytes allocated per run.
+ *
+ * Usage: java -cp lib/*:bin/ ResultBenchmark <dbname> <port> <user> [iterations] [query]
+ */
+
+public class ResultBenchmark{
+	private static final String DEFAULT_QUERY =
+		"SELECT post_id, username_id, likes, date_posted, num_comments, tags, photo_url FROM Post";
+
+	private interface Run{
+		long run() throws SQLException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] ResultBenchmark <dbname> <port> <user> [iterations] [query]");
+			return;
+		}
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		final String query = args.length > 4 ? args[4] : DEFAULT_QUERY;
+		Class.forName("org.postgresql.Driver");
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try{
+			System.out.println("Query: " + query + "\n");
+			measure("List<List<String>>", iterations, () -> {
+				List<List<String>> rows = esql.executePreparedQueryAndReturnResult(query);
+				long sum = 0;
+				for (List<String> row : rows) sum += Integer.parseInt(row.get(0));
+				return sum;
+			});
+			measure("RowHandler callback", iterations, () -> {
+				final long[] sum = new long[1];
+				esql.executeQueryForEach(query, rs -> sum[0] += rs.getInt(1));
+				return sum[0];
+			});
+			measure("ColumnarResult", iterations, () -> {
+				ColumnarResult result = esql.executeQueryColumnar(query);
+				int[] ids = result.getIntColumn(0);
+				long sum = 0;
+				for (int i = 0; i < result.getRowCount(); ++i) sum += ids[i];
+				return sum;
+			});
+		}finally{
+			esql.cleanup();
+		}
+	}//end main
+
+	private static void measure(String name, int iterations, Run run) throws SQLException {
+		//warm up the JIT and the statement cache
+		for (int i = 0; i < Math.max(5, iterations / 10); ++i) run.run();
+
+		long allocBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long checksum = 0;
+		for (int i = 0; i < iterations; ++i) checksum += run.run();
+		long elapsed = System.nanoTime() - start;
+		long allocAfter = allocatedBytes();
+
+		String alloc = allocBefore < 0 ? "n/a" : String.format("%d B", (allocAfter - allocBefore) / iterations);
+		System.out.println(String.format("%-22s %10.1f us/run  %14s/run  (checksum %d)",
+			name, elapsed / 1000.0 / iterations, alloc, checksum));
+	}
+
+	private static long allocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported()){
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}//end ResultBenchmark
@@ -0,0 +1,30 @@
+/*
+ * Row Handler
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback invoked once per row while a query is being read. Nothing is
+ * allocated per row on behalf of the handler, so it suits large results
+ * that are aggregated or printed rather than kept.
+ */
+
+@FunctionalInterface
+public interface RowHandler{
+	/**
+	 * @param rs a result set positioned on the current row; do not call next()
+	 * @throws java.sql.SQLException when a column cannot be read
+	 */
+	void handleRow(ResultSet rs) throws SQLException;
+}//end RowHandler
@@ -0,0 +1,33 @@
+/*
+ * Row Mapper
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Converts the current row of a result set into a typed object. Mappers
+ * should read columns with the typed getters (getInt, getLong, ...) so
+ * numeric columns are never turned into strings.
+ *
+ * @param <T> the type a row is mapped to
+ */
+
+@FunctionalInterface
+public interface RowMapper<T>{
+	/**
+	 * @param rs a result set positioned on the row to map
+	 * @return the mapped row
+	 * @throws java.sql.SQLException when a column cannot be read
+	 */
+	T mapRow(ResultSet rs) throws SQLException;
+}//end RowMapper
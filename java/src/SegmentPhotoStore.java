@@ -0,0 +1,440 @@
+/*
+ * Segment Photo Store
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class packs photos into large append-only segment files instead of
+ * keeping one file per photo, which avoids the per-file metadata and open
+ * cost of many small files (the small-files problem of HDFS).
+ *
+ * Every segment-N.dat has a segment-N.idx log of the puts and deletes it
+ * received. Each record carries a CRC, so a record torn by a crash is
+ * detected and cut off when the store is opened. Opening replays the logs
+ * in segment order into an in-memory map from key to (segment, offset,
+ * length); later records win. Puts append to the newest segment under a
+ * lock and roll to a new one past segmentBytes. Gets copy the photo with a
+ * positional transferTo and never take that lock.
+ *
+ * Deletes only write a record. compact() rewrites the live photos of a
+ * sealed segment that is mostly dead into the newest segment, carries its
+ * delete records over so deleted photos of older segments stay deleted,
+ * and removes it. It takes the append lock for one photo at a time, so
+ * puts and deletes keep going while a segment is compacted.
+ *
+ */
+
+public class SegmentPhotoStore implements PhotoStore{
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private final Path _root;
+	private final long _segmentBytes;
+	private final double _compactRatio;
+	private final ConcurrentHashMap<String, Location> _index = new ConcurrentHashMap<String, Location>();
+	private final ConcurrentSkipListMap<Integer, Segment> _segments = new ConcurrentSkipListMap<Integer, Segment>();
+	//appends, and compaction for each photo it moves, hold the monitor of this; removing a segment also takes the write lock
+	private Segment _active;
+	private final ReentrantReadWriteLock _removal = new ReentrantReadWriteLock();
+	//one compaction at a time
+	private final Object _compaction = new Object();
+
+	//statistics
+	private final AtomicLong _puts = new AtomicLong();
+	private final AtomicLong _gets = new AtomicLong();
+	private final AtomicLong _compacted = new AtomicLong();
+	private final AtomicLong _reclaimed = new AtomicLong();
+
+	/**
+	 * Where one photo lives.
+	 */
+	private static class Location{
+		final int segment;
+		final long offset;
+		final long length;
+		final long modifiedMillis;
+
+		Location(int segment, long offset, long length, long modifiedMillis){
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.modifiedMillis = modifiedMillis;
+		}
+	}
+
+	/**
+	 * One data file and its index log.
+	 */
+	private static class Segment{
+		final int id;
+		final Path dataPath;
+		final Path indexPath;
+		final FileChannel data;
+		final FileChannel index;
+		//bytes of photos still reachable through the index
+		final AtomicLong live = new AtomicLong();
+
+		Segment(Path root, int id) throws IOException {
+			this.id = id;
+			this.dataPath = root.resolve(String.format("segment-%06d.dat", id));
+			this.indexPath = root.resolve(String.format("segment-%06d.idx", id));
+			this.data = FileChannel.open(this.dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.index = FileChannel.open(this.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		void close(){
+			try{
+				this.data.close();
+				this.index.close();
+			}catch (IOException e){
+				// ignored.
+			}
+		}
+	}
+
+	/**
+	 * @param root directory holding the segment files; created if missing
+	 * @param segmentBytes size past which a new segment is started
+	 * @param compactRatio compact a sealed segment when less than this share of it is live
+	 * @throws java.io.IOException when the segments cannot be opened
+	 */
+	public SegmentPhotoStore(Path root, long segmentBytes, double compactRatio) throws IOException {
+		this._root = Files.createDirectories(root.toAbsolutePath().normalize());
+		this._segmentBytes = segmentBytes;
+		this._compactRatio = compactRatio;
+		List<Integer> ids = new ArrayList<Integer>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this._root, "segment-*.dat")){
+			for (Path file : files){
+				String name = file.getFileName().toString();
+				ids.add(Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length())));
+			}
+		}
+		ids.sort(null);
+		for (int id : ids){
+			Segment segment = new Segment(this._root, id);
+			this._segments.put(id, segment);
+			for (Map.Entry<String, Location> record : replay(segment).entrySet())
+				apply(record.getKey(), record.getValue());
+		}
+		this._active = ids.isEmpty() ? newSegment(1) : this._segments.lastEntry().getValue();
+	}
+
+	@Override
+	public void mkdir(String directory){
+		// keys are flat, directories are implied.
+	}
+
+	@Override
+	public long put(Path source, String key) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)){
+			long size = in.size();
+			synchronized (this){
+				Segment segment = reserve(size);
+				long offset = segment.data.size();
+				long copied = 0;
+				while (copied < size){
+					long n = segment.data.transferFrom(in, offset + copied, size - copied);
+					if (n <= 0) break;
+					copied += n;
+				}
+				if (copied != size)
+					throw new IOException("Short read of " + source);
+				//the data must be durable before the record that points at it
+				segment.data.force(false);
+				Location location = new Location(segment.id, offset, size, System.currentTimeMillis());
+				append(segment, PUT, key, location);
+				apply(key, location);
+			}
+			this._puts.incrementAndGet();
+			return size;
+		}
+	}//end put
+
+	@Override
+	public long get(String key, Path target) throws IOException {
+		Path parent = target.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		this._removal.readLock().lock();
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+			Location location = this._index.get(key);
+			if (location == null)
+				throw new NoSuchFileException(key);
+			FileChannel data = this._segments.get(location.segment).data;
+			long copied = 0;
+			while (copied < location.length){
+				long n = data.transferTo(location.offset + copied, location.length - copied, out);
+				if (n <= 0) break;
+				copied += n;
+			}
+			this._gets.incrementAndGet();
+			return copied;
+		}finally{
+			this._removal.readLock().unlock();
+		}
+	}//end get
+
+	@Override
+	public long read(String key, long offset, long length, WritableByteChannel out) throws IOException {
+		this._removal.readLock().lock();
+		try{
+			Location location = this._index.get(key);
+			if (location == null)
+				throw new NoSuchFileException(key);
+			long count = Math.max(0, Math.min(length, location.length - offset));
+			FileChannel data = this._segments.get(location.segment).data;
+			return LocalPhotoStore.copy(data, location.offset + offset, count, out);
+		}finally{
+			this._removal.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Stat stat(String key){
+		Location location = this._index.get(key);
+		return location == null ? null : new Stat(key, location.length, location.modifiedMillis);
+	}
+
+	@Override
+	public synchronized boolean delete(String key) throws IOException {
+		if (!this._index.containsKey(key)) return false;
+		append(this._active, DELETE, key, null);
+		apply(key, null);
+		return true;
+	}
+
+	/**
+	 * Method to rewrite every sealed segment that is mostly dead.
+	 * 
+	 * @return number of bytes of disk space reclaimed
+	 * @throws java.io.IOException when a segment cannot be rewritten
+	 */
+	@Override
+	public long compact() throws IOException {
+		synchronized (this._compaction){
+			long reclaimed = 0;
+			for (Segment segment : new ArrayList<Segment>(this._segments.values())){
+				synchronized (this){
+					if (segment == this._active) continue;
+				}
+				long size = segment.data.size();
+				if (segment.live.get() >= this._compactRatio * size) continue;
+				//a sealed segment receives no more records, so its log can be read unlocked
+				Map<String, Location> records = replay(segment);
+				long moved = 0;
+				for (Map.Entry<String, Location> record : records.entrySet())
+					moved += move(segment, record.getKey(), record.getValue() == null);
+				remove(segment);
+				reclaimed += size - moved;
+				this._compacted.incrementAndGet();
+			}
+			this._reclaimed.addAndGet(reclaimed);
+			return reclaimed;
+		}
+	}//end compact
+
+	/**
+	 * Moves one photo out of a segment being compacted if the index still
+	 * points into it, or carries a delete of it over to the active segment.
+	 * Holds the append lock, so a concurrent put or delete of the key is
+	 * ordered before or after the whole move.
+	 * 
+	 * @return the number of bytes moved
+	 */
+	private synchronized long move(Segment segment, String key, boolean deleted) throws IOException {
+		Location current = this._index.get(key);
+		if (current != null && current.segment == segment.id){
+			Segment target = reserve(current.length);
+			long offset = target.data.size();
+			//transferTo writes at the position of the target channel
+			target.data.position(offset);
+			long copied = 0;
+			while (copied < current.length){
+				long n = segment.data.transferTo(current.offset + copied, current.length - copied, target.data);
+				if (n <= 0) break;
+				copied += n;
+			}
+			target.data.force(false);
+			Location moved = new Location(target.id, offset, current.length, current.modifiedMillis);
+			append(target, PUT, key, moved);
+			apply(key, moved);
+			return current.length;
+		}
+		if (deleted && current == null){
+			//older segments may still hold a put of this key
+			append(this._active, DELETE, key, null);
+		}
+		return 0;
+	}//end move
+
+	/**
+	 * Drops a compacted segment once no reader is using any segment.
+	 */
+	private void remove(Segment segment) throws IOException {
+		this._removal.writeLock().lock();
+		try{
+			this._segments.remove(segment.id);
+			segment.close();
+			Files.deleteIfExists(segment.dataPath);
+			Files.deleteIfExists(segment.indexPath);
+		}finally{
+			this._removal.writeLock().unlock();
+		}
+	}//end remove
+
+	/**
+	 * @return the segment the next photo of the given size goes into,
+	 * starting a new one when the current one would grow past segmentBytes
+	 */
+	private Segment reserve(long size) throws IOException {
+		if (this._active.data.size() > 0 && this._active.data.size() + size > this._segmentBytes)
+			this._active = newSegment(this._active.id + 1);
+		return this._active;
+	}
+
+	private Segment newSegment(int id) throws IOException {
+		Segment segment = new Segment(this._root, id);
+		this._segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Points a key at a new location, or removes it when location is null,
+	 * keeping the live byte counts of the segments involved current.
+	 */
+	private void apply(String key, Location location){
+		Location previous = location == null ? this._index.remove(key) : this._index.put(key, location);
+		if (previous != null){
+			Segment old = this._segments.get(previous.segment);
+			if (old != null) old.live.addAndGet(-previous.length);
+		}
+		if (location != null)
+			this._segments.get(location.segment).live.addAndGet(location.length);
+	}
+
+	/**
+	 * Appends one record: length, then op, offset, length, modification
+	 * time and key, then a CRC32 of everything after the length.
+	 */
+	private static void append(Segment segment, byte op, String key, Location location) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(op);
+		out.writeLong(location == null ? 0 : location.offset);
+		out.writeLong(location == null ? 0 : location.length);
+		out.writeLong(location == null ? 0 : location.modifiedMillis);
+		out.writeUTF(key);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray(), 4, bytes.size() - 4);
+		out.writeInt((int) crc.getValue());
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		record.putInt(0, record.capacity() - 8);
+		long position = segment.index.size();
+		while (record.hasRemaining())
+			position += segment.index.write(record, position);
+		segment.index.force(false);
+	}//end append
+
+	/**
+	 * Reads the index log of a segment, cutting off a torn or corrupt tail.
+	 * 
+	 * @return the last record of every key, in first-seen order; null
+	 * values are deletes
+	 */
+	private static Map<String, Location> replay(Segment segment) throws IOException {
+		Map<String, Location> records = new LinkedHashMap<String, Location>();
+		long size = segment.index.size();
+		ByteBuffer log = ByteBuffer.allocate((int) size);
+		while (log.hasRemaining() && segment.index.read(log, log.position()) > 0){
+			// keep reading.
+		}
+		log.flip();
+		long valid = 0;
+		try{
+			while (log.remaining() >= 4){
+				int length = log.getInt();
+				if (length <= 0 || length + 4 > log.remaining()) break;
+				byte[] payload = new byte[length];
+				log.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (log.getInt() != (int) crc.getValue()) break;
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				byte op = in.readByte();
+				long offset = in.readLong();
+				long bytes = in.readLong();
+				long modified = in.readLong();
+				String key = in.readUTF();
+				records.put(key, op == PUT ? new Location(segment.id, offset, bytes, modified) : null);
+				valid = log.position();
+			}
+		}catch (EOFException e){
+			// torn record, cut below.
+		}
+		if (valid < size)
+			segment.index.truncate(valid);
+		return records;
+	}//end replay
+
+	@Override
+	public synchronized void close(){
+		for (Segment segment : this._segments.values())
+			segment.close();
+	}
+
+	@Override
+	public String getStatistics(){
+		long live = 0;
+		long total = 0;
+		for (Segment segment : this._segments.values()){
+			live += segment.live.get();
+			try{
+				total += segment.data.size();
+			}catch (IOException e){
+				// closed, skip it.
+			}
+		}
+		return String.format("Photos: %s %d photos in %d segments, %.1f of %.1f MB live, puts=%d gets=%d compacted=%d reclaimed=%.1f MB",
+			this, this._index.size(), this._segments.size(), live / 1048576.0, total / 1048576.0,
+			this._puts.get(), this._gets.get(), this._compacted.get(), this._reclaimed.get() / 1048576.0);
+	}
+
+	@Override
+	public String toString(){
+		return "segments:" + this._root;
+	}
+}//end SegmentPhotoStore
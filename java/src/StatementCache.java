@@ -0,0 +1,103 @@
+/*
+ * Prepared Statement Cache
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the most recently used PreparedStatements of one physical
+ * connection, keyed by SQL text, so repeated menu operations reuse the
+ * server-side prepared plan instead of re-parsing and re-planning.
+ *
+ * A cache belongs to exactly one pooled connection and is only touched by
+ * the thread that currently borrows it, so it needs no locking.
+ *
+ */
+
+public class StatementCache{
+	private final Connection _connection;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	//counters shared by the caches of every pooled connection
+	private final AtomicLong _hits;
+	private final AtomicLong _misses;
+	private final AtomicLong _evictions;
+
+	/**
+	 * @param connection the connection statements are prepared on
+	 * @param capacity maximum number of statements kept open
+	 * @param hits shared hit counter
+	 * @param misses shared miss counter
+	 * @param evictions shared eviction counter
+	 */
+	public StatementCache(Connection connection, final int capacity,
+			AtomicLong hits, AtomicLong misses, AtomicLong evictions){
+		this._connection = connection;
+		this._hits = hits;
+		this._misses = misses;
+		this._evictions = evictions;
+		//access ordered so the eldest entry is the least recently used one
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() <= capacity) return false;
+				closeQuietly(eldest.getValue());
+				StatementCache.this._evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns a prepared statement for the given SQL, reusing a cached one
+	 * when possible. The caller must not close the returned statement.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @return a statement with cleared parameters
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = this._statements.get(sql);
+		if (ps != null && !ps.isClosed()){
+			this._hits.incrementAndGet();
+			ps.clearParameters();
+			return ps;
+		}
+		this._misses.incrementAndGet();
+		ps = this._connection.prepareStatement(sql);
+		this._statements.put(sql, ps);
+		return ps;
+	}//end prepare
+
+	/**
+	 * Closes every cached statement.
+	 */
+	public void close(){
+		for (PreparedStatement ps : this._statements.values()){
+			closeQuietly(ps);
+		}
+		this._statements.clear();
+	}//end close
+
+	private static void closeQuietly(PreparedStatement ps){
+		try{
+			ps.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+}//end StatementCache
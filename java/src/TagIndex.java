@@ -0,0 +1,260 @@
+/*
+ * Tag Index
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps an inverted index from each hashtag to the bitmap of
+ * the posts carrying it, so tag searches never scan Post.
+ *
+ * Tags live normalized in PostTag, one row per (tag, post): lower case,
+ * with exactly one leading '#'. rebuild() first derives PostTag rows for
+ * posts that have none (seed data and bulk loads only fill Post.tags),
+ * then loads the bitmaps. Queries combine tags with AND, OR, NOT and
+ * parentheses, e.g. "#music AND NOT #beauty"; NOT binds tightest, then
+ * AND, then OR, and adjacent tags are ANDed.
+ *
+ */
+
+public class TagIndex{
+	public static final int MAX_TAG_LENGTH = 64;
+	private static final String BACKFILL =
+		"INSERT INTO PostTag (post_id, tag)" +
+		" SELECT DISTINCT p.post_id, left('#' || ltrim(t, '#'), " + MAX_TAG_LENGTH + ")" +
+		" FROM Post p CROSS JOIN regexp_split_to_table(lower(p.tags), '[\\s,]+') AS t" +
+		" WHERE ltrim(t, '#') <> '' AND NOT EXISTS (SELECT 1 FROM PostTag x WHERE x.post_id = p.post_id)";
+
+	private final DBproject _db;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	//guarded by _lock
+	private Map<String, PostingBitmap> _postings = new HashMap<String, PostingBitmap>();
+	private PostingBitmap _all = new PostingBitmap();
+	private volatile boolean _built = false;
+
+	/**
+	 * @param db the database the posts are read from
+	 */
+	public TagIndex(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Method to split free text into normalized tags.
+	 * 
+	 * @param text tags separated by spaces or commas, with or without '#'
+	 * @return the distinct tags in the order given, e.g. [#music, #beauty]
+	 */
+	public static List<String> normalize(String text){
+		Set<String> tags = new LinkedHashSet<String>();
+		if (text == null) return new ArrayList<String>(tags);
+		for (String word : text.toLowerCase().split("[\\s,]+")){
+			String tag = normalizeTag(word);
+			if (tag != null) tags.add(tag);
+		}
+		return new ArrayList<String>(tags);
+	}//end normalize
+
+	private static String normalizeTag(String word){
+		int start = 0;
+		while (start < word.length() && word.charAt(start) == '#')
+			start++;
+		if (start == word.length()) return null;
+		String tag = "#" + word.substring(start).toLowerCase();
+		return tag.length() > MAX_TAG_LENGTH ? tag.substring(0, MAX_TAG_LENGTH) : tag;
+	}
+
+	/**
+	 * Method to reload the index from PostTag, first deriving the tags of
+	 * posts that have none from Post.tags.
+	 * 
+	 * @return number of (tag, post) pairs loaded
+	 * @throws java.sql.SQLException when the tags cannot be read
+	 */
+	public int rebuild() throws SQLException {
+		this._db.executePreparedUpdate(BACKFILL);
+		final Map<String, PostingBitmap> postings = new HashMap<String, PostingBitmap>();
+		final PostingBitmap all = new PostingBitmap();
+		int pairs = this._db.executeQueryForEach("SELECT tag, post_id FROM PostTag",
+			rs -> postings.computeIfAbsent(rs.getString(1), t -> new PostingBitmap()).add(rs.getInt(2)));
+		this._db.executeQueryForEach("SELECT post_id FROM Post", rs -> all.add(rs.getInt(1)));
+		this._lock.writeLock().lock();
+		try{
+			this._postings = postings;
+			this._all = all;
+			this._built = true;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+		return pairs;
+	}//end rebuild
+
+	/**
+	 * Method to index a post just inserted.
+	 * 
+	 * @param postId the post
+	 * @param tags its normalized tags
+	 */
+	public void onPost(int postId, List<String> tags){
+		this._lock.writeLock().lock();
+		try{
+			this._all.add(postId);
+			for (String tag : tags)
+				this._postings.computeIfAbsent(tag, t -> new PostingBitmap()).add(postId);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}//end onPost
+
+	/**
+	 * Method to find the posts matching a tag query.
+	 * 
+	 * @param query e.g. "#music AND NOT #beauty" or "(#music OR #dance) #live"
+	 * @return the IDs of the matching posts, ascending
+	 * @throws java.lang.IllegalArgumentException when the query is malformed
+	 * @throws java.sql.SQLException when the index has to be built first and cannot be
+	 */
+	public int[] search(String query) throws SQLException {
+		if (!this._built) rebuild();
+		List<String> tokens = tokenize(query);
+		this._lock.readLock().lock();
+		try{
+			Parser parser = new Parser(tokens);
+			PostingBitmap result = parser.or();
+			if (parser.position != tokens.size())
+				throw new IllegalArgumentException("Invalid tag query: unexpected '" + tokens.get(parser.position) + "'");
+			return result.toArray();
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}//end search
+
+	private static List<String> tokenize(String query){
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for (char c : (query == null ? "" : query).toCharArray()){
+			if (c == '(' || c == ')' || Character.isWhitespace(c) || c == ','){
+				if (word.length() > 0){
+					tokens.add(word.toString());
+					word.setLength(0);
+				}
+				if (c == '(' || c == ')') tokens.add(String.valueOf(c));
+			}else{
+				word.append(c);
+			}
+		}
+		if (word.length() > 0) tokens.add(word.toString());
+		if (tokens.isEmpty())
+			throw new IllegalArgumentException("Invalid tag query: no tags given");
+		return tokens;
+	}
+
+	/**
+	 * Recursive descent over the tokens; call only under the read lock.
+	 */
+	private class Parser{
+		final List<String> tokens;
+		int position = 0;
+
+		Parser(List<String> tokens){
+			this.tokens = tokens;
+		}
+
+		boolean accept(String keyword){
+			if (this.position < this.tokens.size() && this.tokens.get(this.position).equalsIgnoreCase(keyword)){
+				this.position++;
+				return true;
+			}
+			return false;
+		}
+
+		boolean atOperand(){
+			if (this.position >= this.tokens.size()) return false;
+			String t = this.tokens.get(this.position);
+			return !t.equals(")") && !t.equalsIgnoreCase("AND") && !t.equalsIgnoreCase("OR");
+		}
+
+		PostingBitmap or(){
+			PostingBitmap result = and();
+			while (accept("OR"))
+				result = result.or(and());
+			return result;
+		}
+
+		PostingBitmap and(){
+			PostingBitmap result = unary();
+			while (true){
+				if (accept("AND")){
+					result = andOperand(result);
+				}else if (atOperand()){
+					result = andOperand(result);
+				}else{
+					return result;
+				}
+			}
+		}
+
+		//"a AND NOT b" is computed as a difference, without materializing NOT b
+		PostingBitmap andOperand(PostingBitmap left){
+			if (accept("NOT"))
+				return left.andNot(unary());
+			return left.and(unary());
+		}
+
+		PostingBitmap unary(){
+			if (accept("NOT"))
+				return TagIndex.this._all.andNot(unary());
+			if (accept("(")){
+				PostingBitmap inner = or();
+				if (!accept(")"))
+					throw new IllegalArgumentException("Invalid tag query: missing ')'");
+				return inner;
+			}
+			if (!atOperand())
+				throw new IllegalArgumentException("Invalid tag query: expected a tag" +
+					(this.position < this.tokens.size() ? " before '" + this.tokens.get(this.position) + "'" : " at the end"));
+			String tag = normalizeTag(this.tokens.get(this.position++));
+			PostingBitmap posts = tag == null ? null : TagIndex.this._postings.get(tag);
+			return posts == null ? new PostingBitmap() : posts;
+		}
+	}
+
+	public boolean isBuilt(){
+		return this._built;
+	}
+
+	/**
+	 * @return a one-line summary of the index
+	 */
+	public String getStatistics(){
+		this._lock.readLock().lock();
+		try{
+			long pairs = 0;
+			long bytes = this._all.sizeInBytes();
+			for (PostingBitmap posts : this._postings.values()){
+				pairs += posts.cardinality();
+				bytes += posts.sizeInBytes();
+			}
+			return String.format("Tag index: %d tags, %d postings over %d posts, %.1f KB",
+				this._postings.size(), pairs, this._all.cardinality(), bytes / 1024.0);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+}//end TagIndex
@@ -0,0 +1,284 @@
+/*
+ * Thumbnail Pipeline
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * This class generates fixed-size JPEG thumbnails of uploaded photos in the
+ * background and stores them next to the originals, under the key of the
+ * original with "_thumb" before the extension. Listings can then show the
+ * thumbnail of a post instead of the full-size photo.
+ *
+ * Work runs on a fixed pool of daemon threads. At most queueCapacity photos
+ * wait or run at once: uploads never block on the pipeline and a photo that
+ * finds it full is counted as dropped (a later backfill or listing picks it
+ * up), while the backfill waits for room instead.
+ *
+ */
+
+public class ThumbnailPipeline{
+	//photos looked up per batched stat during a backfill
+	private static final int BACKFILL_CHUNK = 500;
+
+	private final DBproject _db;
+	private final int _size;
+	private final ExecutorService _workers;
+	private final Semaphore _slots;
+	private final int _capacity;
+	//thumbnail keys known to exist
+	private final Set<String> _available = ConcurrentHashMap.newKeySet();
+	//original keys queued or being processed
+	private final Set<String> _inFlight = ConcurrentHashMap.newKeySet();
+
+	//statistics
+	private final AtomicLong _generated = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private final AtomicLong _nanos = new AtomicLong();
+	private final AtomicLong _bytesIn = new AtomicLong();
+	private final AtomicLong _bytesOut = new AtomicLong();
+
+	/**
+	 * @param db the database whose photo store holds the photos
+	 * @param size longest side of a thumbnail, in pixels
+	 * @param threads number of worker threads
+	 * @param queueCapacity maximum number of photos waiting or in progress
+	 */
+	public ThumbnailPipeline(DBproject db, int size, int threads, int queueCapacity){
+		this._db = db;
+		this._size = size;
+		this._capacity = queueCapacity;
+		this._slots = new Semaphore(queueCapacity);
+		this._workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "thumbnail-worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @param key the key of an original photo
+	 * @return the key its thumbnail is stored under
+	 */
+	public static String thumbnailKey(String key){
+		int slash = key.lastIndexOf('/');
+		int dot = key.lastIndexOf('.');
+		if (dot <= slash) return key + "_thumb";
+		return key.substring(0, dot) + "_thumb" + key.substring(dot);
+	}
+
+	/**
+	 * Method to queue a thumbnail for a photo just stored. Never blocks.
+	 * 
+	 * @param key the key of the original photo
+	 */
+	public void onUpload(String key){
+		//a replaced photo needs a new thumbnail
+		this._available.remove(thumbnailKey(key));
+		if (!this._inFlight.add(key)) return;
+		if (!this._slots.tryAcquire()){
+			this._inFlight.remove(key);
+			this._dropped.incrementAndGet();
+			return;
+		}
+		submit(key);
+	}//end onUpload
+
+	/**
+	 * Method to find the thumbnails of a listed page with at most two
+	 * batched lookups, one for the thumbnails and one for the originals of
+	 * those that are missing. A missing thumbnail of a stored photo is
+	 * queued, so it shows up next time.
+	 * 
+	 * @param keys the keys of the original photos
+	 * @return the thumbnail key of every original that has one, by original key
+	 * @throws java.io.IOException when the photo store cannot be read
+	 */
+	public Map<String, String> thumbnailsOf(Collection<String> keys) throws IOException {
+		Map<String, String> found = new HashMap<String, String>();
+		for (String key : unthumbnailed(keys, found))
+			onUpload(key);
+		return found;
+	}//end thumbnailsOf
+
+	/**
+	 * Looks up the thumbnails of the given originals not known to have one
+	 * with one statAll, then the originals of the missing ones with another.
+	 * 
+	 * @param keys the keys of the original photos
+	 * @param found receives the thumbnail key of every original that has one
+	 * @return the stored originals without a thumbnail, in the order given
+	 */
+	private List<String> unthumbnailed(Collection<String> keys, Map<String, String> found) throws IOException {
+		List<String> missing = new ArrayList<String>();
+		Map<String, String> unknown = new HashMap<String, String>();
+		for (String key : keys){
+			String thumbnail = thumbnailKey(key);
+			if (this._available.contains(thumbnail)) found.put(key, thumbnail);
+			else unknown.put(thumbnail, key);
+		}
+		if (unknown.isEmpty()) return missing;
+
+		PhotoStore store = this._db.getPhotoStore();
+		Map<String, PhotoStore.Stat> thumbnails = store.statAll(unknown.keySet());
+		for (String key : keys){
+			String thumbnail = thumbnailKey(key);
+			if (!unknown.containsKey(thumbnail)) continue;
+			if (thumbnails.containsKey(thumbnail)){
+				this._available.add(thumbnail);
+				found.put(key, thumbnail);
+			}else{
+				missing.add(key);
+			}
+		}
+		if (missing.isEmpty()) return missing;
+		Map<String, PhotoStore.Stat> originals = store.statAll(missing);
+		missing.removeIf(key -> !originals.containsKey(key));
+		return missing;
+	}//end unthumbnailed
+
+	/**
+	 * Method to generate the missing thumbnails of every post whose photo
+	 * is in the photo store, and wait for them. Posts are checked in chunks
+	 * of BACKFILL_CHUNK, two batched lookups per chunk.
+	 * 
+	 * @return number of thumbnails queued
+	 * @throws java.sql.SQLException when the posts cannot be read
+	 * @throws java.io.IOException when the photo store cannot be read
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public int backfill() throws SQLException, IOException, InterruptedException {
+		List<String> keys = this._db.executeQueryAndMap("SELECT username_id, post_id FROM Post ORDER BY post_id",
+			rs -> PhotoStore.photoKey(rs.getString(1), rs.getInt(2)));
+		Map<String, String> found = new HashMap<String, String>();
+		int queued = 0;
+		for (int from = 0; from < keys.size(); from += BACKFILL_CHUNK){
+			List<String> chunk = new ArrayList<String>();
+			for (String key : keys.subList(from, Math.min(keys.size(), from + BACKFILL_CHUNK))){
+				if (!this._inFlight.contains(key)) chunk.add(key);
+			}
+			found.clear();
+			for (String key : unthumbnailed(chunk, found)){
+				this._slots.acquire();
+				if (!this._inFlight.add(key)){
+					this._slots.release();
+					continue;
+				}
+				submit(key);
+				queued++;
+			}
+		}
+		//every slot back means every queued thumbnail is done
+		this._slots.acquire(this._capacity);
+		this._slots.release(this._capacity);
+		return queued;
+	}//end backfill
+
+	private void submit(String key){
+		this._workers.execute(() -> {
+			try{
+				generate(key);
+			}catch (Exception e){
+				this._failed.incrementAndGet();
+			}finally{
+				this._inFlight.remove(key);
+				this._slots.release();
+			}
+		});
+	}
+
+	/**
+	 * Reads the original, scales it to fit a size x size box keeping its
+	 * aspect ratio, and stores it as a JPEG. The original is read past the
+	 * photo cache, which it would only churn.
+	 */
+	private void generate(String key) throws IOException {
+		long start = System.nanoTime();
+		PhotoStore store = this._db.getPhotoStore();
+		Path original = Files.createTempFile("photo", ".img");
+		Path thumbnail = Files.createTempFile("thumb", ".jpg");
+		try{
+			this._bytesIn.addAndGet(this._db.getUncachedPhotoStore().get(key, original));
+			BufferedImage image = ImageIO.read(original.toFile());
+			if (image == null)
+				throw new IOException("Unsupported image format: " + key);
+			double scale = Math.min(1.0, (double) this._size / Math.max(image.getWidth(), image.getHeight()));
+			int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+			int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+			BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = scaled.createGraphics();
+			try{
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				//transparent pixels of PNG and GIF photos become white
+				g.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+			}finally{
+				g.dispose();
+			}
+			if (!ImageIO.write(scaled, "jpg", thumbnail.toFile()))
+				throw new IOException("No JPEG writer available");
+			String thumbnailKey = thumbnailKey(key);
+			this._bytesOut.addAndGet(store.put(thumbnail, thumbnailKey));
+			this._available.add(thumbnailKey);
+			this._generated.incrementAndGet();
+			this._nanos.addAndGet(System.nanoTime() - start);
+		}finally{
+			Files.deleteIfExists(original);
+			Files.deleteIfExists(thumbnail);
+		}
+	}//end generate
+
+	/**
+	 * Stops the workers, giving queued thumbnails a moment to finish.
+	 */
+	public void close(){
+		this._workers.shutdown();
+		try{
+			this._workers.awaitTermination(5, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}//end close
+
+	/**
+	 * @return a one-line summary of thumbnail generation since startup
+	 */
+	public String getStatistics(){
+		long generated = this._generated.get();
+		double seconds = this._nanos.get() / 1e9;
+		return String.format("Thumbnails: generated=%d failed=%d dropped=%d pending=%d avg=%.1f ms (%.1f per worker-second) in=%.1f MB out=%.1f MB",
+			generated, this._failed.get(), this._dropped.get(), this._inFlight.size(),
+			generated == 0 ? 0.0 : seconds * 1000 / generated, seconds == 0 ? 0.0 : generated / seconds,
+			this._bytesIn.get() / 1048576.0, this._bytesOut.get() / 1048576.0);
+	}
+}//end ThumbnailPipeline
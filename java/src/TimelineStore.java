@@ -0,0 +1,347 @@
+/*
+ * Timeline Store
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps a bounded, rank-ordered timeline per user so a newsfeed
+ * does not have to query every followee.
+ *
+ * Posts by ordinary accounts are pushed into the timelines of all their
+ * followers when they are created (fan-out on write). Accounts with at
+ * least celebrityThreshold followers would make that push too expensive,
+ * so their posts are not pushed; a reader pulls them with one query over
+ * the celebrities they follow and merges them in (fan-out on read).
+ *
+ * Each author's newest posts are loaded one past the timeline capacity,
+ * so a timeline that cannot hold all of them overflows and is marked
+ * truncated, and a reader paging past it falls back to Post.
+ *
+ * In UserFollowing a row (username_id, follower) means username_id
+ * follows the user in the follower column, which is how FollowUser
+ * inserts it.
+ *
+ */
+
+public class TimelineStore{
+	private final DBproject _db;
+	private final int _capacity;
+	private final int _celebrityThreshold;
+
+	//who each user follows, and who follows each user
+	private volatile ConcurrentHashMap<String, Set<String>> _followees = new ConcurrentHashMap<String, Set<String>>();
+	private volatile ConcurrentHashMap<String, Set<String>> _followers = new ConcurrentHashMap<String, Set<String>>();
+	private volatile ConcurrentHashMap<String, Timeline> _timelines = new ConcurrentHashMap<String, Timeline>();
+	private volatile boolean _built = false;
+
+	/**
+	 * A fixed-capacity array of feed items kept in rank order. When it is
+	 * full the lowest ranked item falls off.
+	 */
+	static class Timeline {
+		private final FeedItem[] _items;
+		private int _size = 0;
+		//set once an item has been dropped, after which the tail may be incomplete
+		private boolean _truncated = false;
+
+		Timeline(int capacity){
+			this._items = new FeedItem[capacity];
+		}
+
+		synchronized void add(FeedItem item){
+			for (int i = 0; i < this._size; ++i){
+				if (this._items[i].postId == item.postId) return; // already present
+			}
+			int pos = -Arrays.binarySearch(this._items, 0, this._size, item, FeedItem.RANKED) - 1;
+			if (pos >= this._items.length){
+				this._truncated = true;
+				return; // older than everything we keep
+			}
+			if (this._size == this._items.length) this._truncated = true;
+			int moved = Math.min(this._size, this._items.length - 1) - pos;
+			System.arraycopy(this._items, pos, this._items, pos + 1, moved);
+			this._items[pos] = item;
+			if (this._size < this._items.length) this._size++;
+		}
+
+		/**
+		 * Returns up to limit items following the token, or null when the
+		 * timeline has dropped items that might belong on that page.
+		 */
+		synchronized List<FeedItem> snapshot(int limit, PageToken after){
+			int from = 0;
+			if (after != null){
+				while (from < this._size && !after.precedes(this._items[from])) ++from;
+			}
+			int to = Math.min(from + limit, this._size);
+			if (to - from < limit && this._truncated) return null;
+			return new ArrayList<FeedItem>(Arrays.asList(this._items).subList(from, to));
+		}
+
+		synchronized void removeAuthor(String author){
+			int kept = 0;
+			for (int i = 0; i < this._size; ++i){
+				if (!this._items[i].author.equals(author)) this._items[kept++] = this._items[i];
+			}
+			Arrays.fill(this._items, kept, this._size, null);
+			this._size = kept;
+		}
+	}//end Timeline
+
+	/**
+	 * @param db the database the timelines are derived from
+	 * @param capacity number of items kept per timeline
+	 * @param celebrityThreshold follower count from which posts are pulled instead of pushed
+	 */
+	public TimelineStore(DBproject db, int capacity, int celebrityThreshold){
+		this._db = db;
+		this._capacity = capacity;
+		this._celebrityThreshold = celebrityThreshold;
+	}
+
+	public int getCapacity(){
+		return this._capacity;
+	}
+
+	/**
+	 * @return whether rebuild() has completed, i.e. timelines can be trusted
+	 */
+	public boolean isBuilt(){
+		return this._built;
+	}
+
+	/**
+	 * Rebuilds the follow graph and every timeline from UserFollowing and
+	 * Post. Used on cold start; readers keep seeing the old state until the
+	 * new one is complete.
+	 *
+	 * @return the number of timeline entries written
+	 * @throws java.sql.SQLException when the base tables cannot be read
+	 */
+	public int rebuild() throws SQLException {
+		final ConcurrentHashMap<String, Set<String>> followees = new ConcurrentHashMap<String, Set<String>>();
+		final ConcurrentHashMap<String, Set<String>> followers = new ConcurrentHashMap<String, Set<String>>();
+		final ConcurrentHashMap<String, Timeline> timelines = new ConcurrentHashMap<String, Timeline>();
+
+		this._db.executeQueryForEach("SELECT username_id, follower FROM UserFollowing", rs -> {
+			String user = rs.getString(1);
+			String followee = rs.getString(2);
+			setOf(followees, user).add(followee);
+			setOf(followers, followee).add(user);
+		});
+
+		//only the newest posts of each author can ever reach a timeline; one more marks it truncated
+		final AtomicInteger entries = new AtomicInteger();
+		this._db.executeQueryForEach(
+			"SELECT " + FeedItem.COLUMNS + " FROM (SELECT " + FeedItem.COLUMNS +
+			", row_number() OVER (PARTITION BY username_id ORDER BY " + PageToken.ORDER_BY + ") AS rn FROM Post) p" +
+			" WHERE rn <= ?",
+			rs -> {
+				FeedItem item = FeedItem.MAPPER.mapRow(rs);
+				Set<String> readers = followers.get(item.author);
+				if (readers == null || readers.size() >= this._celebrityThreshold) return;
+				for (String reader : readers){
+					timelineOf(timelines, reader).add(item);
+					entries.incrementAndGet();
+				}
+			}, this._capacity + 1);
+
+		this._followees = followees;
+		this._followers = followers;
+		this._timelines = timelines;
+		this._built = true;
+		return entries.get();
+	}//end rebuild
+
+	/**
+	 * Pushes a newly created post to the timelines of the author's followers,
+	 * unless the author is a celebrity whose posts are pulled at read time.
+	 *
+	 * @param item the new post
+	 */
+	public void onPost(FeedItem item){
+		Set<String> readers = this._followers.get(item.author);
+		if (readers == null || isCelebrity(item.author)) return;
+		for (String reader : readers){
+			timelineOf(this._timelines, reader).add(item);
+		}
+	}//end onPost
+
+	/**
+	 * Records a new follow edge. Unless the followee is a celebrity, their
+	 * newest posts are copied into the follower's timeline.
+	 *
+	 * @param user the user who follows
+	 * @param followee the user being followed
+	 * @throws java.sql.SQLException when the followee's posts cannot be read
+	 */
+	public void onFollow(String user, String followee) throws SQLException {
+		setOf(this._followees, user).add(followee);
+		setOf(this._followers, followee).add(user);
+		if (isCelebrity(followee)) return;
+		pushRecent(followee, Collections.singletonList(user));
+	}//end onFollow
+
+	/**
+	 * Records many new follow edges at once, backfilling timelines with a
+	 * single query over all non-celebrity followees.
+	 *
+	 * @param edges pairs of {user, followee}
+	 * @throws java.sql.SQLException when the followees' posts cannot be read
+	 */
+	public void onFollows(List<String[]> edges) throws SQLException {
+		final ConcurrentHashMap<String, Set<String>> newReaders = new ConcurrentHashMap<String, Set<String>>();
+		for (String[] edge : edges){
+			setOf(this._followees, edge[0]).add(edge[1]);
+			setOf(this._followers, edge[1]).add(edge[0]);
+		}
+		for (String[] edge : edges){
+			if (!isCelebrity(edge[1])) setOf(newReaders, edge[1]).add(edge[0]);
+		}
+		if (newReaders.isEmpty()) return;
+		this._db.executeQueryForEach(
+			"SELECT " + FeedItem.COLUMNS + " FROM (SELECT " + FeedItem.COLUMNS +
+			", row_number() OVER (PARTITION BY username_id ORDER BY " + PageToken.ORDER_BY + ") AS rn" +
+			" FROM Post WHERE username_id = ANY(?)) p WHERE rn <= ?",
+			rs -> {
+				FeedItem item = FeedItem.MAPPER.mapRow(rs);
+				for (String reader : newReaders.get(item.author)){
+					timelineOf(this._timelines, reader).add(item);
+				}
+			}, newReaders.keySet().toArray(new String[0]), this._capacity + 1);
+	}//end onFollows
+
+	/**
+	 * Removes a follow edge and the followee's posts from the follower's
+	 * timeline. When the followee drops below the celebrity threshold, their
+	 * posts, which were pulled at read time and never pushed, are copied
+	 * into the timelines of the remaining followers.
+	 *
+	 * @param user the user who unfollows
+	 * @param followee the user no longer followed
+	 * @throws java.sql.SQLException when the followee's posts cannot be read
+	 */
+	public void onUnfollow(String user, String followee) throws SQLException {
+		boolean wasCelebrity = isCelebrity(followee);
+		Set<String> followees = this._followees.get(user);
+		if (followees != null) followees.remove(followee);
+		Set<String> readers = this._followers.get(followee);
+		if (readers != null) readers.remove(user);
+		Timeline timeline = this._timelines.get(user);
+		if (timeline != null) timeline.removeAuthor(followee);
+		if (wasCelebrity && readers != null && !isCelebrity(followee)) pushRecent(followee, readers);
+	}//end onUnfollow
+
+	/**
+	 * Reads the newest items of a user's newsfeed: the pushed timeline merged
+	 * with posts pulled from followed celebrities in a single query.
+	 *
+	 * @param user the reader
+	 * @param limit maximum number of items, at most the timeline capacity
+	 * @param after continue after this position, or null for the first page
+	 * @return up to limit items in rank order, or null when the page reaches
+	 *         past what the timeline keeps and must be read from Post instead
+	 * @throws java.sql.SQLException when celebrity posts cannot be read
+	 */
+	public List<FeedItem> readFeed(String user, int limit, PageToken after) throws SQLException {
+		limit = Math.min(limit, this._capacity);
+		Timeline timeline = this._timelines.get(user);
+		List<FeedItem> pushed = timeline == null ? Collections.<FeedItem>emptyList() : timeline.snapshot(limit, after);
+		if (pushed == null) return null;
+
+		List<String> celebrities = new ArrayList<String>();
+		Set<String> followees = this._followees.get(user);
+		if (followees != null){
+			for (String followee : followees){
+				if (isCelebrity(followee)) celebrities.add(followee);
+			}
+		}
+		if (celebrities.isEmpty()) return pushed;
+
+		String[] authors = celebrities.toArray(new String[0]);
+		List<FeedItem> pulled;
+		if (after == null){
+			pulled = this._db.executeQueryAndMap(
+				"SELECT " + FeedItem.COLUMNS + " FROM Post WHERE username_id = ANY(?) ORDER BY " + PageToken.ORDER_BY + " LIMIT ?",
+				FeedItem.MAPPER, authors, limit);
+		}else{
+			Object[] key = after.keyParams();
+			pulled = this._db.executeQueryAndMap(
+				"SELECT " + FeedItem.COLUMNS + " FROM Post WHERE username_id = ANY(?) AND " + PageToken.KEYSET +
+				" ORDER BY " + PageToken.ORDER_BY + " LIMIT ?",
+				FeedItem.MAPPER, authors, key[0], key[1], limit);
+		}
+		return merge(pushed, pulled, limit);
+	}//end readFeed
+
+	/**
+	 * @param user an account
+	 * @return whether the account has enough followers to be read-time merged
+	 */
+	public boolean isCelebrity(String user){
+		Set<String> readers = this._followers.get(user);
+		return readers != null && readers.size() >= this._celebrityThreshold;
+	}
+
+	/**
+	 * Merges two rank-ordered lists, dropping duplicates (a post pushed
+	 * before its author became a celebrity is also pulled).
+	 */
+	private static List<FeedItem> merge(List<FeedItem> a, List<FeedItem> b, int limit){
+		List<FeedItem> result = new ArrayList<FeedItem>(Math.min(limit, a.size() + b.size()));
+		Set<Integer> seen = new HashSet<Integer>();
+		int i = 0, j = 0;
+		while (result.size() < limit && (i < a.size() || j < b.size())){
+			FeedItem next;
+			if (j >= b.size() || (i < a.size() && FeedItem.RANKED.compare(a.get(i), b.get(j)) <= 0)){
+				next = a.get(i++);
+			}else{
+				next = b.get(j++);
+			}
+			if (seen.add(next.postId)) result.add(next);
+		}
+		return result;
+	}//end merge
+
+	/**
+	 * Copies an author's newest posts, one more than a timeline holds, into
+	 * the timelines of the given readers.
+	 */
+	private void pushRecent(String author, Collection<String> readers) throws SQLException {
+		List<FeedItem> items = this._db.executeQueryAndMap(
+			"SELECT " + FeedItem.COLUMNS + " FROM Post WHERE username_id = ? ORDER BY " + PageToken.ORDER_BY + " LIMIT ?",
+			FeedItem.MAPPER, author, this._capacity + 1);
+		for (String reader : readers){
+			Timeline timeline = timelineOf(this._timelines, reader);
+			for (FeedItem item : items)
+				timeline.add(item);
+		}
+	}//end pushRecent
+
+	private static Set<String> setOf(ConcurrentHashMap<String, Set<String>> map, String key){
+		return map.computeIfAbsent(key, k -> ConcurrentHashMap.<String>newKeySet());
+	}
+
+	private Timeline timelineOf(ConcurrentHashMap<String, Timeline> map, String user){
+		return map.computeIfAbsent(user, k -> new Timeline(this._capacity));
+	}
+}//end TimelineStore
@@ -0,0 +1,185 @@
+/*
+ * Transaction
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An explicit transaction on one borrowed connection. Statements run
+ * through the connection's prepared statement cache, and writes can be
+ * queued with addBatch so many rows travel in few round trips (the pool
+ * connects with reWriteBatchedInserts, so a batch of single-row INSERTs is
+ * sent as multi-row INSERTs). Nothing is visible to other sessions until
+ * commit(); closing without commit rolls back.
+ *
+ *   try (Transaction tx = esql.beginTransaction()){
+ *       tx.update(...);
+ *       tx.addBatch(...);
+ *       tx.commit();
+ *   }
+ *
+ */
+
+public class Transaction implements AutoCloseable{
+	private static final int BATCH_SIZE = Integer.getInteger("batch.size", 1000);
+
+	private final ConnectionPool _pool;
+	private final ConnectionPool.PooledConnection _pc;
+	private boolean _finished = false;
+
+	//statements with queued rows, executed in the order they were first used
+	private final Map<String, PreparedStatement> _batches = new LinkedHashMap<String, PreparedStatement>();
+	private int _queued = 0;
+	private long _batchedRows = 0;
+
+	/**
+	 * Work to run inside a transaction; see DBproject.inTransaction.
+	 */
+	@FunctionalInterface
+	public interface Work<T> {
+		T run(Transaction tx) throws SQLException;
+	}
+
+	Transaction(ConnectionPool pool) throws SQLException {
+		this._pool = pool;
+		this._pc = pool.borrow();
+		try{
+			this._pc.getConnection().setAutoCommit(false);
+		}catch (SQLException e){
+			pool.release(this._pc);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a parameterized update immediately, after any queued batches.
+	 *
+	 * @return the number of rows affected
+	 */
+	public int update(String sql, Object... params) throws SQLException {
+		checkOpen();
+		executeBatch();
+		return DBproject.prepare(this._pc, sql, params).executeUpdate();
+	}
+
+	/**
+	 * Runs a parameterized query immediately, after any queued batches.
+	 *
+	 * @return the mapped rows
+	 */
+	public <T> List<T> query(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+		checkOpen();
+		executeBatch();
+		List<T> result = new ArrayList<T>();
+		try (ResultSet rs = DBproject.prepare(this._pc, sql, params).executeQuery()){
+			while (rs.next()) result.add(mapper.mapRow(rs));
+		}
+		return result;
+	}
+
+	/**
+	 * Queues one row for a parameterized write. Queued rows are sent once
+	 * batch.size rows are waiting, and in full by executeBatch() or
+	 * commit(). Statements are executed in the order of their first
+	 * addBatch, so queue parent rows before child rows.
+	 */
+	public void addBatch(String sql, Object... params) throws SQLException {
+		checkOpen();
+		PreparedStatement ps = this._batches.get(sql);
+		if (ps == null){
+			ps = DBproject.prepare(this._pc, sql, params);
+			this._batches.put(sql, ps);
+		}else{
+			DBproject.bind(this._pc, ps, params);
+		}
+		ps.addBatch();
+		if (++this._queued >= BATCH_SIZE) executeBatch();
+	}//end addBatch
+
+	/**
+	 * Sends every queued row.
+	 *
+	 * @return the number of rows sent by this call; see getBatchedRows() for
+	 *         the total including earlier automatic flushes
+	 */
+	public long executeBatch() throws SQLException {
+		for (PreparedStatement ps : this._batches.values()){
+			ps.executeBatch();
+		}
+		long sent = this._queued;
+		this._batches.clear();
+		this._queued = 0;
+		this._batchedRows += sent;
+		return sent;
+	}//end executeBatch
+
+	/**
+	 * @return rows sent through addBatch so far
+	 */
+	public long getBatchedRows(){
+		return this._batchedRows;
+	}
+
+	public void commit() throws SQLException {
+		checkOpen();
+		executeBatch();
+		this._pc.getConnection().commit();
+		this._finished = true;
+	}
+
+	public void rollback() throws SQLException {
+		checkOpen();
+		discardBatches();
+		this._pc.getConnection().rollback();
+		this._finished = true;
+	}
+
+	/**
+	 * Rolls back unless committed and returns the connection to the pool.
+	 */
+	@Override
+	public void close(){
+		try{
+			if (!this._finished){
+				discardBatches();
+				this._pc.getConnection().rollback();
+			}
+		}catch (SQLException e){
+			// the pool discards or resets the connection on release.
+		}finally{
+			this._finished = true;
+			this._pool.release(this._pc);
+		}
+	}//end close
+
+	private void discardBatches(){
+		for (PreparedStatement ps : this._batches.values()){
+			try{
+				ps.clearBatch();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+		this._batches.clear();
+		this._queued = 0;
+	}
+
+	private void checkOpen() throws SQLException {
+		if (this._finished) throw new SQLException("Transaction already finished");
+	}
+}//end Transaction
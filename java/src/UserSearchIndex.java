@@ -0,0 +1,351 @@
+/*
+ * User Search Index
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class finds users by the beginning of their username, full name or
+ * any word of their full name, ignoring case, and tolerates typos, so the
+ * profile and photo searches no longer need an exact username or an exact
+ * full name (which DBUsers cannot even look up without a scan).
+ *
+ * Prefix matches come from a sorted map of search terms, read with one
+ * subMap range. Typo-tolerant matches are found through an index of the
+ * trigrams of each term: a term within k edits of the query shares all but
+ * at most 3k of its trigrams, so only terms sharing enough trigrams are
+ * compared with the query by edit distance. Results rank exact matches
+ * first, then prefix matches, then typo matches, each by follower count.
+ *
+ */
+
+public class UserSearchIndex{
+	private final DBproject _db;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	//guarded by _lock; user ids are positions in _users
+	private List<User> _users = new ArrayList<User>();
+	private Map<String, Integer> _ids = new HashMap<String, Integer>();
+	private TreeMap<String, Postings> _terms = new TreeMap<String, Postings>();
+	private Map<String, Postings> _grams = new HashMap<String, Postings>();
+
+	/**
+	 * The ids of the users having one term or trigram. Grows in place, with
+	 * spare room, so indexing a user does not copy the postings of common
+	 * trigrams.
+	 */
+	private static class Postings{
+		private int[] _ids;
+		private int _size;
+
+		Postings(int[] ids){
+			this._ids = ids;
+			this._size = ids.length;
+		}
+
+		/**
+		 * @param known whether the id may already be present; new ids are
+		 *        larger than every id indexed so far and cannot be
+		 */
+		void add(int id, boolean known){
+			if (known){
+				for (int i = 0; i < this._size; ++i){
+					if (this._ids[i] == id) return;
+				}
+			}else if (this._size > 0 && this._ids[this._size - 1] == id){
+				return; // a term listed twice for the same user
+			}
+			if (this._size == this._ids.length)
+				this._ids = Arrays.copyOf(this._ids, Math.max(4, this._size * 2));
+			this._ids[this._size++] = id;
+		}
+	}//end Postings
+
+	private static class User{
+		final String username;
+		final String fullname;
+		final String[] terms;
+
+		User(String username, String fullname){
+			this.username = username;
+			this.fullname = fullname;
+			Set<String> terms = new LinkedHashSet<String>();
+			terms.add(normalize(username));
+			String name = normalize(fullname);
+			terms.add(name);
+			terms.addAll(Arrays.asList(name.split(" ")));
+			terms.remove("");
+			this.terms = terms.toArray(new String[0]);
+		}
+	}
+
+	/**
+	 * One search result.
+	 */
+	public static class Match{
+		public final String username;
+		public final String fullname;
+		public final long followers;
+		//0 exact, 1 prefix, 2 typo
+		final int quality;
+
+		Match(String username, String fullname, long followers, int quality){
+			this.username = username;
+			this.fullname = fullname;
+			this.followers = followers;
+			this.quality = quality;
+		}
+
+		/**
+		 * @return whether the query was the whole username, full name or a word of it
+		 */
+		public boolean isExact(){
+			return this.quality == 0;
+		}
+
+		@Override
+		public String toString(){
+			return this.username + "\t" + this.fullname + "\t" + this.followers + "\t";
+		}
+	}
+
+	/**
+	 * @param db the database the users are read from
+	 */
+	public UserSearchIndex(DBproject db){
+		this._db = db;
+	}
+
+	static String normalize(String text){
+		return text == null ? "" : text.trim().toLowerCase().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * Method to reload the index from DBUsers.
+	 * 
+	 * @return number of users indexed
+	 * @throws java.sql.SQLException when DBUsers cannot be read
+	 */
+	public int rebuild() throws SQLException {
+		final List<User> users = new ArrayList<User>();
+		this._db.executeQueryForEach("SELECT username, fullname FROM DBUsers",
+			rs -> users.add(new User(rs.getString(1), rs.getString(2))));
+		//collect postings per term and trigram, then freeze them into arrays
+		Map<String, List<Integer>> terms = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> grams = new HashMap<String, List<Integer>>();
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (int id = 0; id < users.size(); ++id){
+			User u = users.get(id);
+			ids.put(u.username, id);
+			for (String term : u.terms){
+				terms.computeIfAbsent(term, t -> new ArrayList<Integer>()).add(id);
+				for (String gram : grams(term, true))
+					grams.computeIfAbsent(gram, g -> new ArrayList<Integer>()).add(id);
+			}
+		}
+		TreeMap<String, Postings> frozenTerms = new TreeMap<String, Postings>();
+		for (Map.Entry<String, List<Integer>> e : terms.entrySet())
+			frozenTerms.put(e.getKey(), new Postings(distinct(e.getValue())));
+		Map<String, Postings> frozenGrams = new HashMap<String, Postings>();
+		for (Map.Entry<String, List<Integer>> e : grams.entrySet())
+			frozenGrams.put(e.getKey(), new Postings(distinct(e.getValue())));
+
+		this._lock.writeLock().lock();
+		try{
+			this._users = users;
+			this._ids = ids;
+			this._terms = frozenTerms;
+			this._grams = frozenGrams;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+		return users.size();
+	}//end rebuild
+
+	/**
+	 * Method to index a user just added.
+	 * 
+	 * @param username the new user
+	 * @param fullname their full name
+	 */
+	public void onUser(String username, String fullname){
+		User u = new User(username, fullname);
+		this._lock.writeLock().lock();
+		try{
+			//a re-added username keeps its old id; stale terms are filtered on read
+			Integer existing = this._ids.get(username);
+			int id = existing != null ? existing : this._users.size();
+			if (existing != null) this._users.set(id, u);
+			else this._users.add(u);
+			this._ids.put(username, id);
+			boolean known = existing != null;
+			for (String term : u.terms){
+				this._terms.computeIfAbsent(term, t -> new Postings(new int[0])).add(id, known);
+				for (String gram : grams(term, true))
+					this._grams.computeIfAbsent(gram, g -> new Postings(new int[0])).add(id, known);
+			}
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}//end onUser
+
+	/**
+	 * Method to find users by a prefix of their username or full name, or
+	 * by either with a typo.
+	 * 
+	 * @param query what was typed
+	 * @param limit maximum number of results
+	 * @return the best matches, best first
+	 */
+	public List<Match> search(String query, int limit){
+		String q = normalize(query);
+		List<Match> result = new ArrayList<Match>();
+		if (q.isEmpty()) return result;
+		//best quality seen per user id
+		Map<Integer, Integer> found = new HashMap<Integer, Integer>();
+		//the users found, copied out while the lock is held
+		Map<Integer, User> candidates = new HashMap<Integer, User>();
+		this._lock.readLock().lock();
+		try{
+			List<User> users = this._users;
+			for (Map.Entry<String, Postings> e : this._terms.subMap(q, true, q + Character.MAX_VALUE, false).entrySet()){
+				int quality = e.getKey().equals(q) ? 0 : 1;
+				Postings ids = e.getValue();
+				for (int i = 0; i < ids._size; ++i)
+					found.merge(ids._ids[i], quality, Math::min);
+			}
+			int maxEdits = q.length() <= 2 ? 0 : q.length() <= 5 ? 1 : 2;
+			if (maxEdits > 0 && found.size() < limit){
+				List<String> queryGrams = grams(q, false);
+				int needed = Math.max(1, queryGrams.size() - 3 * maxEdits);
+				Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+				for (String gram : queryGrams){
+					Postings ids = this._grams.get(gram);
+					if (ids == null) continue;
+					for (int i = 0; i < ids._size; ++i)
+						shared.merge(ids._ids[i], 1, Integer::sum);
+				}
+				for (Map.Entry<Integer, Integer> e : shared.entrySet()){
+					if (e.getValue() < needed || found.containsKey(e.getKey())) continue;
+					if (withinEdits(q, users.get(e.getKey()).terms, maxEdits))
+						found.put(e.getKey(), 2);
+				}
+			}
+			for (Integer id : found.keySet())
+				candidates.put(id, users.get(id));
+		}finally{
+			this._lock.readLock().unlock();
+		}
+		FollowerLeaderboard leaderboard = this._db.getLeaderboard();
+		for (Map.Entry<Integer, Integer> e : found.entrySet()){
+			User u = candidates.get(e.getKey());
+			//terms of a replaced user still point at its id
+			if (e.getValue() < 2 && !matchesPrefix(u, q)) continue;
+			result.add(new Match(u.username, u.fullname, leaderboard.followers(u.username), e.getValue()));
+		}
+		result.sort((a, b) -> {
+			if (a.quality != b.quality) return Integer.compare(a.quality, b.quality);
+			int c = Long.compare(b.followers, a.followers);
+			return c != 0 ? c : a.username.compareTo(b.username);
+		});
+		return result.size() > limit ? new ArrayList<Match>(result.subList(0, limit)) : result;
+	}//end search
+
+	private static boolean matchesPrefix(User u, String q){
+		for (String term : u.terms){
+			if (term.startsWith(q)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A term matches when it, or its beginning of the query's length, is
+	 * within maxEdits of the query, so typos are forgiven while typing too.
+	 */
+	private static boolean withinEdits(String q, String[] terms, int maxEdits){
+		for (String term : terms){
+			if (distance(q, term, maxEdits) <= maxEdits) return true;
+			if (term.length() > q.length() && distance(q, term.substring(0, q.length()), maxEdits) <= maxEdits) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Edit distance counting insertions, deletions, substitutions and
+	 * transpositions of adjacent characters.
+	 * 
+	 * @return the distance, or limit + 1 once it is known to exceed limit
+	 */
+	static int distance(String a, String b, int limit){
+		if (Math.abs(a.length() - b.length()) > limit) return limit + 1;
+		int[] prev2 = new int[b.length() + 1];
+		int[] prev = new int[b.length() + 1];
+		int[] curr = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); ++j)
+			prev[j] = j;
+		for (int i = 1; i <= a.length(); ++i){
+			curr[0] = i;
+			int rowMin = curr[0];
+			for (int j = 1; j <= b.length(); ++j){
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				curr[j] = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+				if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+					curr[j] = Math.min(curr[j], prev2[j - 2] + 1);
+				rowMin = Math.min(rowMin, curr[j]);
+			}
+			if (rowMin > limit) return limit + 1;
+			int[] t = prev2;
+			prev2 = prev;
+			prev = curr;
+			curr = t;
+		}
+		return prev[b.length()];
+	}//end distance
+
+	/**
+	 * @param closed whether the end of the text is marked; query grams are
+	 * left open so a query can match the beginning of a longer term
+	 * @return the distinct trigrams of the text, with its start marked
+	 */
+	static List<String> grams(String text, boolean closed){
+		String s = "\u0002" + text + (closed ? "\u0003" : "");
+		Set<String> grams = new LinkedHashSet<String>();
+		for (int i = 0; i + 3 <= s.length(); ++i)
+			grams.add(s.substring(i, i + 3));
+		return new ArrayList<String>(grams);
+	}
+
+	private static int[] distinct(List<Integer> ids){
+		return ids.stream().mapToInt(Integer::intValue).distinct().toArray();
+	}
+
+	/**
+	 * @return a one-line summary of the index
+	 */
+	public String getStatistics(){
+		this._lock.readLock().lock();
+		try{
+			return String.format("User search index: %d users, %d terms, %d trigrams",
+				this._users.size(), this._terms.size(), this._grams.size());
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+}//end UserSearchIndex
@@ -1,9 +1,13 @@
 DROP TABLE IF EXISTS DBUsers CASCADE;
 DROP TABLE IF EXISTS Post CASCADE;
+DROP TABLE IF EXISTS PostId CASCADE;
 DROP TABLE IF EXISTS UserProfile CASCADE;
 DROP TABLE IF EXISTS UserFollowing CASCADE;
 DROP TABLE IF EXISTS PostComment CASCADE;
 DROP TABLE IF EXISTS UserTagged CASCADE;
+DROP TABLE IF EXISTS PostTag CASCADE;
+DROP TABLE IF EXISTS PhotoRef CASCADE;
+DROP TABLE IF EXISTS PhotoBlob CASCADE;
 
 
 -------------
@@ -33,17 +37,29 @@ PRIMARY KEY(username)
 ---RELATIONS---
 ---------------
 
+-- every post_id in Post, registered in the transaction that inserts the post;
+-- Post cannot enforce post_id uniqueness or be referenced by it, since every
+-- key of a partitioned table must include the partition key
+CREATE TABLE PostId(
+post_id INTEGER NOT NULL,
+PRIMARY KEY(post_id)
+);
+
 CREATE TABLE Post(
 post_id INTEGER NOT NULL,
 username_id VARCHAR(64) NOT NULL,
 likes INTEGER NOT NULL,
 date_posted DATE NOT NULL,
 num_comments INTEGER NOT NULL,
-tags VARCHAR(64) NOT NULL,
+tags TEXT NOT NULL, -- as typed; PostTag holds the normalized tags
 photo_url VARCHAR(128) NOT NULL,
-PRIMARY KEY(post_id),
+PRIMARY KEY(post_id, date_posted),
 FOREIGN KEY(username_id) REFERENCES DBUsers(username)
-);
+) PARTITION BY RANGE (date_posted);
+
+-- months without a partition of their own, e.g. rows loaded by COPY; the
+-- application creates post_yYYYYmMM partitions and moves these rows there
+CREATE TABLE post_default PARTITION OF Post DEFAULT;
 
 CREATE TABLE UserProfile(
 profile_id INTEGER NOT NULL,
@@ -67,18 +83,50 @@ CREATE TABLE PostComment (
   PRIMARY KEY (username_id, comment)
 );
 
+-- rows of archived posts are removed with their PostId row
 CREATE TABLE UserTagged (
-pid INTEGER REFERENCES Post(post_id),
+pid INTEGER REFERENCES PostId(post_id) ON DELETE CASCADE,
 tagged VARCHAR(64) REFERENCES DBUsers(username),
 PRIMARY KEY (pid, tagged)
 );
 
+-- normalized hashtags of a post: lower case with one leading '#'
+CREATE TABLE PostTag (
+post_id INTEGER NOT NULL REFERENCES PostId(post_id) ON DELETE CASCADE,
+tag VARCHAR(64) NOT NULL,
+PRIMARY KEY (tag, post_id)
+);
+
+CREATE INDEX post_tag_post_idx ON PostTag(post_id);
+
+-- unique photo contents, stored once under their SHA-256 digest
+CREATE TABLE PhotoBlob (
+digest CHAR(64) NOT NULL,
+size BIGINT NOT NULL,
+PRIMARY KEY (digest)
+);
+
+-- which blob each photo key (e.g. /instagram/<user>/<user>-<post_id>.jpg) points to
+CREATE TABLE PhotoRef (
+photo_key VARCHAR(128) NOT NULL,
+digest CHAR(64) NOT NULL REFERENCES PhotoBlob(digest),
+PRIMARY KEY (photo_key)
+);
+
+CREATE INDEX photo_ref_digest_idx ON PhotoRef(digest);
+
 CREATE INDEX follower_idx ON UserFollowing(follower);
 
-CREATE INDEX comment_idx ON PostComment(comment);
+-- word and phrase search over comments; CommentSearch queries this exact expression
+CREATE INDEX comment_fts_idx ON PostComment USING GIN (to_tsvector('english', comment));
 
 CREATE INDEX tagged_idx ON UserTagged(tagged);
 
+-- indexes on Post are created on every partition
+CREATE INDEX post_feed_idx ON Post(username_id, date_posted DESC, post_id DESC);
+
+CREATE INDEX post_date_idx ON Post(date_posted DESC, post_id DESC);
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -107,6 +155,16 @@ FROM 'posts.csv'
 WITH DELIMITER ','
 CSV HEADER;
 
+-- fails on duplicate post_ids, which Post itself cannot reject
+INSERT INTO PostId (post_id)
+SELECT post_id FROM Post;
+
+-- split the space or comma separated Post.tags into normalized PostTag rows
+INSERT INTO PostTag (post_id, tag)
+SELECT DISTINCT p.post_id, left('#' || ltrim(t, '#'), 64)
+FROM Post p CROSS JOIN regexp_split_to_table(lower(p.tags), '[\s,]+') AS t
+WHERE ltrim(t, '#') <> '';
+
 COPY UserProfile (
 	profile_id,
 	username_id,